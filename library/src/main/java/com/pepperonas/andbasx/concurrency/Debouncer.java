@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.RateLimitListener;
+
+/**
+ * The type Debouncer.
+ * <p>
+ * Lets an event through once calls stopped for the given delay, e.g. to query a search only
+ * after the user stopped typing. With the leading edge enabled, the first call of a burst passes
+ * immediately; with the trailing edge (default), the latest value passes after the burst.
+ *
+ * @param <T> the type of the event value
+ */
+public class Debouncer<T> extends RateLimiter<T> {
+
+    private final long delayMs;
+    private final boolean leading;
+    private final boolean trailing;
+
+    private boolean windowOpen;
+    private boolean hasTrailing;
+    private long deadline;
+    private T latest;
+
+
+    private Debouncer(Builder<T> builder) {
+        super(builder.listener, builder.lane);
+        this.delayMs = builder.delayMs;
+        this.leading = builder.leading;
+        this.trailing = builder.trailing;
+    }
+
+
+    /**
+     * Submits an event.
+     *
+     * @param value the value
+     */
+    public void call(T value) {
+        boolean fire = false;
+        synchronized (this) {
+            latest = value;
+            deadline = now() + delayMs;
+            if (!windowOpen) {
+                windowOpen = true;
+                scheduleTimer(delayMs);
+                fire = leading;
+                hasTrailing = !leading;
+            } else {
+                hasTrailing = true;
+            }
+        }
+        if (fire) {
+            deliver(value);
+        }
+    }
+
+
+    @Override
+    void onTimer() {
+        T value;
+        synchronized (this) {
+            if (!windowOpen) {
+                return;
+            }
+            long remaining = deadline - now();
+            if (remaining > 0) {
+                // Calls arrived meanwhile, wait for the rest of the quiet period.
+                scheduleTimer(remaining);
+                return;
+            }
+            windowOpen = false;
+            value = latest;
+            latest = null;
+            if (!trailing || !hasTrailing) {
+                return;
+            }
+            hasTrailing = false;
+        }
+        deliver(value);
+    }
+
+
+    /**
+     * Delivers a pending trailing event right away.
+     */
+    public void flush() {
+        T value;
+        synchronized (this) {
+            if (!windowOpen) {
+                return;
+            }
+            cancelTimer();
+            windowOpen = false;
+            value = latest;
+            latest = null;
+            if (!trailing || !hasTrailing) {
+                return;
+            }
+            hasTrailing = false;
+        }
+        deliver(value);
+    }
+
+
+    /**
+     * Drops a pending trailing event.
+     */
+    public synchronized void cancel() {
+        cancelTimer();
+        windowOpen = false;
+        hasTrailing = false;
+        latest = null;
+    }
+
+
+    /**
+     * The type Builder.
+     *
+     * @param <T> the type of the event value
+     */
+    public static class Builder<T> {
+
+        private final long delayMs;
+        private final RateLimitListener<T> listener;
+        private boolean leading;
+        private boolean trailing = true;
+        private ThreadUtils.Lane lane;
+
+
+        /**
+         * Instantiates a new Builder.
+         *
+         * @param delayMs  the quiet period in ms
+         * @param listener the listener
+         */
+        public Builder(long delayMs, RateLimitListener<T> listener) {
+            this.delayMs = Math.max(0, delayMs);
+            this.listener = listener;
+        }
+
+
+        /**
+         * Lets the first event of a burst pass immediately. Defaults to false.
+         *
+         * @param leading the leading
+         * @return the builder
+         */
+        public Builder<T> setLeading(boolean leading) {
+            this.leading = leading;
+            return this;
+        }
+
+
+        /**
+         * Lets the latest event pass after a burst. Defaults to true.
+         *
+         * @param trailing the trailing
+         * @return the builder
+         */
+        public Builder<T> setTrailing(boolean trailing) {
+            this.trailing = trailing;
+            return this;
+        }
+
+
+        /**
+         * Calls the listener on a background lane instead of the main thread.
+         *
+         * @param lane the lane
+         * @return the builder
+         */
+        public Builder<T> runOn(ThreadUtils.Lane lane) {
+            this.lane = lane;
+            return this;
+        }
+
+
+        /**
+         * Build debouncer.
+         *
+         * @return the debouncer
+         */
+        public Debouncer<T> build() {
+            return new Debouncer<>(this);
+        }
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import android.os.Looper;
+
+import com.pepperonas.andbasx.AndBasx;
+import com.pepperonas.andbasx.interfaces.LoaderTaskListener;
+import com.pepperonas.jbasx.log.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The type Loader batcher.
+ * <p>
+ * Collects {@link LoaderTaskUtils.Action#RESOLVE} calls to one endpoint and sends them as a
+ * single request once the batch is full or its time window elapsed. The {@link Codec} turns the
+ * items into the params of the batch request and splits the response into one result per item,
+ * which is handed to the listener of that item.
+ */
+public class LoaderBatcher {
+
+    private static final String TAG = "LoaderBatcher";
+
+    private final String url;
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+    private final Codec codec;
+    private final LoaderEngine engine;
+    private final LoaderTaskUtils.Priority priority;
+
+    private List<Item> items = new ArrayList<>();
+    private TimerUtils.Task scheduled;
+
+    private long batchCount;
+    private long itemCount;
+
+
+    /**
+     * Encodes batches and decodes batch responses.
+     */
+    public interface Codec {
+
+        /**
+         * Encodes the items of a batch to the params of the batch request.
+         *
+         * @param items the params of each item, alternating keys and values
+         * @return the params of the batch request, alternating keys and values
+         * @throws Exception if the items cannot be encoded
+         */
+        String[] encode(List<List<String>> items) throws Exception;
+
+        /**
+         * Splits the response of a batch request into one result per item.
+         *
+         * @param response the response
+         * @param count    the number of items
+         * @return the results in item order
+         * @throws Exception if the response cannot be decoded
+         */
+        List<String> decode(String response, int count) throws Exception;
+    }
+
+
+    /**
+     * Sends the items as JSON array of objects in the param {@code batch} and expects a JSON
+     * array with one result per item in return.
+     */
+    public static class JsonArrayCodec implements Codec {
+
+        @Override
+        public String[] encode(List<List<String>> items) throws JSONException {
+            JSONArray batch = new JSONArray();
+            for (List<String> params : items) {
+                JSONObject item = new JSONObject();
+                for (int i = 0; i + 1 < params.size(); i += 2) {
+                    item.put(params.get(i), params.get(i + 1));
+                }
+                batch.put(item);
+            }
+            return new String[]{"batch", batch.toString()};
+        }
+
+
+        @Override
+        public List<String> decode(String response, int count) throws JSONException {
+            JSONArray results = new JSONArray(response);
+            if (results.length() != count) {
+                throw new JSONException("Expected " + count + " results, got " + results.length());
+            }
+            List<String> decoded = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                decoded.add(String.valueOf(results.get(i)));
+            }
+            return decoded;
+        }
+    }
+
+
+    private LoaderBatcher(Builder builder) {
+        this.url = builder.url;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxDelayMs = builder.maxDelayMs;
+        this.codec = builder.codec;
+        this.engine = builder.engine;
+        this.priority = builder.priority;
+    }
+
+
+    /**
+     * Adds a call to the current batch.
+     *
+     * @param listener the listener of this call
+     * @param params   the params, alternating keys and values
+     */
+    public void add(LoaderTaskListener listener, String... params) {
+        List<Item> full = null;
+        synchronized (this) {
+            items.add(new Item(Arrays.asList(params), listener));
+            if (items.size() >= maxBatchSize) {
+                full = take();
+            } else if (scheduled == null) {
+                scheduled = TimerUtils.runOnce(maxDelayMs, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        flush();
+                        return null;
+                    }
+                });
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+
+    /**
+     * Sends the current batch right away.
+     */
+    public void flush() {
+        List<Item> batch;
+        synchronized (this) {
+            batch = take();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+
+    private List<Item> take() {
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
+        }
+        List<Item> batch = items;
+        items = new ArrayList<>();
+        return batch;
+    }
+
+
+    private void send(final List<Item> batch) {
+        List<List<String>> params = new ArrayList<>(batch.size());
+        for (Item item : batch) {
+            params.add(item.params);
+        }
+        String[] encoded;
+        try {
+            encoded = codec.encode(params);
+        } catch (Exception e) {
+            Log.e(TAG, "send - failed to encode batch: " + e.getMessage());
+            failAll(batch, "An error occurred.");
+            return;
+        }
+        synchronized (this) {
+            batchCount++;
+            itemCount += batch.size();
+        }
+        Log.d(TAG, "send - " + batch.size() + " items to " + url);
+
+        final LoaderTaskUtils.Builder builder = new LoaderTaskUtils.Builder(AndBasx.getContext(),
+                new BatchListener(batch), url, encoded)
+                .setPriority(priority);
+        if (engine != null) {
+            builder.setEngine(engine);
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            builder.launch();
+            return;
+        }
+        // Batches sent by the timer: AsyncTask has to be started on the main thread.
+        ThreadUtils.getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                builder.launch();
+            }
+        });
+    }
+
+
+    private static void failAll(List<Item> batch, String msg) {
+        for (Item item : batch) {
+            if (item.listener != null) {
+                item.listener.onLoaderTaskFailed(LoaderTaskUtils.Action.RESOLVE, msg);
+            }
+        }
+    }
+
+
+    /**
+     * Gets the number of calls waiting for the next batch.
+     *
+     * @return the pending count
+     */
+    public synchronized int getPendingCount() {
+        return items.size();
+    }
+
+
+    /**
+     * Gets the average number of calls per sent batch.
+     *
+     * @return the average batch size
+     */
+    public synchronized float getAverageBatchSize() {
+        return batchCount == 0 ? 0f : (float) itemCount / batchCount;
+    }
+
+
+    private final class BatchListener implements LoaderTaskListener {
+
+        private final List<Item> batch;
+
+
+        BatchListener(List<Item> batch) {
+            this.batch = batch;
+        }
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, String msg) {
+            List<String> results;
+            try {
+                results = codec.decode(msg, batch.size());
+            } catch (Exception e) {
+                Log.e(TAG, "onLoaderTaskSuccess - failed to decode batch: " + e.getMessage());
+                failAll(batch, "Invalid batch response.");
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                LoaderTaskListener listener = batch.get(i).listener;
+                if (listener != null) {
+                    listener.onLoaderTaskSuccess(action, results.get(i));
+                }
+            }
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, String msg) {
+            failAll(batch, msg);
+        }
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, InputStream inputStream) {
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, InputStream inputStream) {
+        }
+    }
+
+
+    private static final class Item {
+
+        private final List<String> params;
+        private final LoaderTaskListener listener;
+
+
+        Item(List<String> params, LoaderTaskListener listener) {
+            this.params = params;
+            this.listener = listener;
+        }
+    }
+
+
+    /**
+     * The type Builder.
+     */
+    public static class Builder {
+
+        private final String url;
+        private int maxBatchSize = 20;
+        private long maxDelayMs = 2000;
+        private Codec codec = new JsonArrayCodec();
+        private LoaderEngine engine;
+        private LoaderTaskUtils.Priority priority = LoaderTaskUtils.Priority.NORMAL;
+
+
+        /**
+         * Instantiates a new Builder.
+         *
+         * @param url the batch endpoint
+         */
+        public Builder(String url) {
+            this.url = url;
+        }
+
+
+        /**
+         * Sends a batch once it holds the given number of calls. Defaults to 20.
+         *
+         * @param maxBatchSize the max batch size
+         * @return the builder
+         */
+        public Builder setMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = Math.max(1, maxBatchSize);
+            return this;
+        }
+
+
+        /**
+         * Sends a batch at the latest the given time after its first call. Defaults to 2 s.
+         *
+         * @param maxDelayMs the max delay in ms
+         * @return the builder
+         */
+        public Builder setMaxDelay(long maxDelayMs) {
+            this.maxDelayMs = Math.max(0, maxDelayMs);
+            return this;
+        }
+
+
+        /**
+         * Sets the codec. Defaults to {@link JsonArrayCodec}.
+         *
+         * @param codec the codec
+         * @return the builder
+         */
+        public Builder setCodec(Codec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+
+        /**
+         * Sets the engine which runs the batch requests.
+         *
+         * @param engine the engine
+         * @return the builder
+         */
+        public Builder setEngine(LoaderEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+
+        /**
+         * Sets the priority of the batch requests.
+         *
+         * @param priority the priority
+         * @return the builder
+         */
+        public Builder setPriority(LoaderTaskUtils.Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+
+        /**
+         * Build loader batcher.
+         *
+         * @return the loader batcher
+         */
+        public LoaderBatcher build() {
+            return new LoaderBatcher(this);
+        }
+    }
+
+}
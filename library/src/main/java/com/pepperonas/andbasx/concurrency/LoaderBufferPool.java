@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of char buffers used to decode response bodies, so concurrent loaders do not
+ * allocate a fresh buffer per request. Buffers beyond the pool limit are left to the GC.
+ */
+final class LoaderBufferPool {
+
+    static final int CHAR_BUFFER_SIZE = 8 * 1024;
+
+    private static final int MAX_POOLED = 4;
+
+    private static final ArrayDeque<char[]> CHAR_BUFFERS = new ArrayDeque<>(MAX_POOLED);
+
+
+    private LoaderBufferPool() {
+    }
+
+
+    static char[] acquireChars() {
+        synchronized (CHAR_BUFFERS) {
+            char[] buffer = CHAR_BUFFERS.pollLast();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new char[CHAR_BUFFER_SIZE];
+    }
+
+
+    static void releaseChars(char[] buffer) {
+        if (buffer == null || buffer.length != CHAR_BUFFER_SIZE) {
+            return;
+        }
+        synchronized (CHAR_BUFFERS) {
+            if (CHAR_BUFFERS.size() < MAX_POOLED) {
+                CHAR_BUFFERS.addLast(buffer);
+            }
+        }
+    }
+
+}
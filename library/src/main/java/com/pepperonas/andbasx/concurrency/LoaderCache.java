@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.jbasx.log.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The type Loader cache.
+ * <p>
+ * Disk backed LRU cache for {@link LoaderTaskUtils.Action#READ} responses. Entries are keyed by
+ * URL and revalidated with If-None-Match / If-Modified-Since, so a 304 is served from disk.
+ */
+public class LoaderCache {
+
+    private static final String TAG = "LoaderCache";
+
+    private static final String SUFFIX_BODY = ".body";
+    private static final String SUFFIX_META = ".meta";
+    private static final String SUFFIX_TMP = ".tmp";
+
+    private final File dir;
+    private final long maxSize;
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private long requestCount;
+    private long missCount;
+    private long revalidationCount;
+    private long hitCount;
+    private long bytesSaved;
+
+
+    /**
+     * Instantiates a new Loader cache.
+     *
+     * @param dir     the cache directory
+     * @param maxSize the size budget in bytes
+     */
+    public LoaderCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "LoaderCache - failed to create " + dir);
+        }
+        restore();
+    }
+
+
+    private void restore() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX_TMP)) {
+                delete(file);
+            } else if (name.endsWith(SUFFIX_BODY)) {
+                String key = name.substring(0, name.length() - SUFFIX_BODY.length());
+                if (new File(dir, key + SUFFIX_META).exists()) {
+                    lru.put(key, file.length());
+                    size += file.length();
+                } else {
+                    delete(file);
+                }
+            }
+        }
+        trimToSize();
+    }
+
+
+    /**
+     * Looks up the entry for an url.
+     *
+     * @param url the url
+     * @return the entry or null on a miss
+     */
+    public synchronized Entry get(String url) {
+        requestCount++;
+        String key = key(url);
+        if (lru.get(key) == null) {
+            missCount++;
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(dir, key + SUFFIX_META)));
+            String storedUrl = in.readUTF();
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            if (!storedUrl.equals(url)) {
+                missCount++;
+                return null;
+            }
+            return new Entry(key, etag, lastModified);
+        } catch (IOException e) {
+            remove(key);
+            missCount++;
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+
+    /**
+     * Adds the conditional request headers of a cached entry.
+     *
+     * @param conn  the connection
+     * @param entry the entry
+     */
+    public synchronized void addConditionalHeaders(HttpURLConnection conn, Entry entry) {
+        if (!entry.etag.isEmpty()) {
+            conn.setRequestProperty("If-None-Match", entry.etag);
+        }
+        if (!entry.lastModified.isEmpty()) {
+            conn.setRequestProperty("If-Modified-Since", entry.lastModified);
+        }
+        revalidationCount++;
+    }
+
+
+    /**
+     * Opens the cached body after the server answered 304.
+     *
+     * @param entry the entry
+     * @return the input stream
+     * @throws IOException the io exception
+     */
+    public synchronized InputStream openNotModified(Entry entry) throws IOException {
+        File body = new File(dir, entry.key + SUFFIX_BODY);
+        InputStream in = new BufferedInputStream(new FileInputStream(body), 8192);
+        hitCount++;
+        bytesSaved += body.length();
+        body.setLastModified(System.currentTimeMillis());
+        return in;
+    }
+
+
+    /**
+     * Returns whether a response carries enough validators to be cached.
+     *
+     * @param conn the connection
+     * @return true if the response should be stored
+     */
+    public boolean isCacheable(HttpURLConnection conn) {
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+            return false;
+        }
+        return conn.getHeaderField("ETag") != null || conn.getHeaderField("Last-Modified") != null;
+    }
+
+
+    /**
+     * Wraps the body of a 200 response so it is copied into the cache while the caller reads
+     * it. The entry is committed once the stream was read to the end; a stream closed early, a
+     * failing read or a body above the size budget leave the cache untouched. The caller's
+     * reads are never failed by the cache.
+     *
+     * @param url  the url
+     * @param conn the connection
+     * @param in   the response body
+     * @return the input stream to read the body from
+     */
+    public InputStream store(String url, HttpURLConnection conn, InputStream in) {
+        // A decoded body is never smaller than its Content-Length on the wire.
+        if (LoaderTaskUtils.getContentLength(conn) > maxSize) {
+            return in;
+        }
+        try {
+            return new CachingInputStream(in, url, key(url), nonNull(conn.getHeaderField("ETag")),
+                    nonNull(conn.getHeaderField("Last-Modified")));
+        } catch (IOException e) {
+            Log.w(TAG, "store - " + e.getMessage());
+            return in;
+        }
+    }
+
+
+    private void commit(String url, String key, File tmp, long length, String etag,
+                        String lastModified) throws IOException {
+        File metaTmp = File.createTempFile(key, SUFFIX_TMP, dir);
+        DataOutputStream meta = new DataOutputStream(new FileOutputStream(metaTmp));
+        try {
+            meta.writeUTF(url);
+            meta.writeUTF(etag);
+            meta.writeUTF(lastModified);
+        } finally {
+            close(meta);
+        }
+
+        synchronized (this) {
+            remove(key);
+            if (!tmp.renameTo(new File(dir, key + SUFFIX_BODY))
+                    || !metaTmp.renameTo(new File(dir, key + SUFFIX_META))) {
+                delete(tmp);
+                delete(metaTmp);
+                remove(key);
+                throw new IOException("Failed to commit cache entry for " + url);
+            }
+            lru.put(key, length);
+            size += length;
+            trimToSize();
+        }
+    }
+
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            delete(new File(dir, eldest.getKey() + SUFFIX_BODY));
+            delete(new File(dir, eldest.getKey() + SUFFIX_META));
+        }
+    }
+
+
+    private void remove(String key) {
+        Long length = lru.remove(key);
+        if (length != null) {
+            size -= length;
+        }
+        delete(new File(dir, key + SUFFIX_BODY));
+        delete(new File(dir, key + SUFFIX_META));
+    }
+
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void evictAll() {
+        for (String key : lru.keySet().toArray(new String[lru.size()])) {
+            remove(key);
+        }
+    }
+
+
+    /**
+     * Gets the current size in bytes.
+     *
+     * @return the size
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    /**
+     * Gets the directory the entries are stored in.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+
+    /**
+     * Gets the size budget in bytes.
+     *
+     * @return the max size
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+
+    /**
+     * Gets the number of lookups.
+     *
+     * @return the request count
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+
+    /**
+     * Gets the number of lookups without a cached entry.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+
+    /**
+     * Gets the number of conditional requests sent.
+     *
+     * @return the revalidation count
+     */
+    public synchronized long getRevalidationCount() {
+        return revalidationCount;
+    }
+
+
+    /**
+     * Gets the number of responses served from disk after a 304.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+
+    /**
+     * Gets the number of body bytes which did not have to be downloaded.
+     *
+     * @return the bytes saved
+     */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{requests=" + requestCount + ", misses=" + missCount
+                + ", revalidations=" + revalidationCount + ", hits=" + hitCount
+                + ", bytesSaved=" + bytesSaved + ", size=" + size + "/" + maxSize + "}";
+    }
+
+
+    private static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return String.valueOf(url.hashCode());
+        }
+    }
+
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete - failed to delete " + file);
+        }
+    }
+
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+    /**
+     * Input stream which writes everything read through it into a temp file and commits the
+     * file as cache entry at the end of the stream.
+     */
+    private final class CachingInputStream extends FilterInputStream {
+
+        private final String url;
+        private final String key;
+        private final String etag;
+        private final String lastModified;
+        private final File tmp;
+        private final byte[] single = new byte[1];
+        private OutputStream out;
+        private long length;
+
+
+        CachingInputStream(InputStream in, String url, String key, String etag,
+                           String lastModified) throws IOException {
+            super(in);
+            this.url = url;
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.tmp = File.createTempFile(key, SUFFIX_TMP, dir);
+            this.out = new BufferedOutputStream(new FileOutputStream(tmp), 8192);
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                finish();
+            } else if (out != null) {
+                single[0] = (byte) b;
+                write(single, 0, 1);
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read;
+            try {
+                read = in.read(buffer, offset, count);
+            } catch (IOException e) {
+                abandon();
+                throw e;
+            }
+            if (read == -1) {
+                finish();
+            } else if (read > 0 && out != null) {
+                write(buffer, offset, read);
+            }
+            return read;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would be missing from the entry.
+            abandon();
+            return in.skip(n);
+        }
+
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            abandon();
+            in.close();
+        }
+
+
+        private void write(byte[] buffer, int offset, int count) {
+            length += count;
+            if (length > maxSize) {
+                abandon();
+                return;
+            }
+            try {
+                out.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.w(TAG, "store - " + e.getMessage());
+                abandon();
+            }
+        }
+
+
+        private void finish() {
+            if (out == null) {
+                return;
+            }
+            OutputStream stream = out;
+            out = null;
+            try {
+                stream.close();
+                commit(url, key, tmp, length, etag, lastModified);
+            } catch (IOException e) {
+                Log.w(TAG, "store - " + e.getMessage());
+                delete(tmp);
+            }
+        }
+
+
+        private void abandon() {
+            if (out != null) {
+                LoaderCache.close(out);
+                out = null;
+                delete(tmp);
+            }
+        }
+    }
+
+
+    /**
+     * The type Entry.
+     */
+    public static final class Entry {
+
+        private final String key;
+        private final String etag;
+        private final String lastModified;
+
+
+        private Entry(String key, String etag, String lastModified) {
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+
+        /**
+         * Gets etag.
+         *
+         * @return the etag
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+
+        /**
+         * Gets last modified.
+         *
+         * @return the last modified
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+}
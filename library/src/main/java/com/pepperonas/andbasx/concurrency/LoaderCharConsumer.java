@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.LoaderStreamConsumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The type Loader char consumer.
+ * <p>
+ * {@link LoaderStreamConsumer} which decodes the body with the response charset and hands out
+ * chars instead of bytes. Multi-byte sequences split across chunks are carried over.
+ */
+public abstract class LoaderCharConsumer implements LoaderStreamConsumer {
+
+    private final ByteBuffer pending = ByteBuffer.allocate(16);
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private CharsetDecoder decoder;
+
+
+    /**
+     * On chars. The buffer is reused for the next chunk.
+     *
+     * @param buffer the buffer
+     * @param offset the offset
+     * @param count  the count
+     * @return false to stop reading
+     * @throws IOException the io exception
+     */
+    protected abstract boolean onChars(char[] buffer, int offset, int count) throws IOException;
+
+
+    @Override
+    public void onStreamStart(LoaderTaskUtils.Action action, long contentLength, String charset)
+            throws IOException {
+        decoder = Charset.forName(charset).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        pending.clear();
+    }
+
+
+    @Override
+    public boolean onStreamBytes(byte[] buffer, int offset, int count) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(buffer, offset, count);
+        if (pending.position() > 0) {
+            while (pending.hasRemaining() && in.hasRemaining()) {
+                pending.put(in.get());
+                pending.flip();
+                if (!decode(pending, false)) {
+                    return false;
+                }
+                pending.compact();
+                if (pending.position() == 0) {
+                    break;
+                }
+            }
+        }
+        if (!decode(in, false)) {
+            return false;
+        }
+        pending.put(in);
+        return true;
+    }
+
+
+    @Override
+    public void onStreamEnd(long totalBytes) throws IOException {
+        pending.flip();
+        decode(pending, true);
+        chars.clear();
+        decoder.flush(chars);
+        chars.flip();
+        if (chars.hasRemaining()) {
+            onChars(chars.array(), 0, chars.remaining());
+        }
+    }
+
+
+    private boolean decode(ByteBuffer in, boolean endOfInput) throws IOException {
+        CoderResult result;
+        do {
+            chars.clear();
+            result = decoder.decode(in, chars, endOfInput);
+            chars.flip();
+            if (chars.hasRemaining() && !onChars(chars.array(), 0, chars.remaining())) {
+                return false;
+            }
+        } while (result.isOverflow());
+        return true;
+    }
+
+}
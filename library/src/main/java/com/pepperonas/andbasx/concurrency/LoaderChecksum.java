@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * The type Loader checksum.
+ * <p>
+ * Expected digest of a {@link LoaderTaskUtils.Action#STORE_FILE} download. The digest is computed
+ * from the bytes as they are written, and the file is only moved into place if it matches.
+ */
+public final class LoaderChecksum {
+
+    /**
+     * The enum Algorithm.
+     */
+    public enum Algorithm {
+        /**
+         * SHA-256, for integrity against tampering.
+         */
+        SHA_256,
+        /**
+         * CRC32, cheap detection of transfer errors.
+         */
+        CRC32
+    }
+
+    private final Algorithm algorithm;
+    private final String expected;
+
+
+    private LoaderChecksum(Algorithm algorithm, String expected) {
+        this.algorithm = algorithm;
+        this.expected = expected.trim().toLowerCase();
+    }
+
+
+    /**
+     * Expects a SHA-256 digest.
+     *
+     * @param hex the digest as hex string
+     * @return the loader checksum
+     */
+    public static LoaderChecksum sha256(String hex) {
+        return new LoaderChecksum(Algorithm.SHA_256, hex);
+    }
+
+
+    /**
+     * Expects a CRC32 value.
+     *
+     * @param hex the value as hex string, e.g. "cbf43926"
+     * @return the loader checksum
+     */
+    public static LoaderChecksum crc32(String hex) {
+        return new LoaderChecksum(Algorithm.CRC32, hex);
+    }
+
+
+    /**
+     * Gets algorithm.
+     *
+     * @return the algorithm
+     */
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+
+    /**
+     * Gets the expected digest.
+     *
+     * @return the expected digest as lower case hex string
+     */
+    public String getExpected() {
+        return expected;
+    }
+
+
+    /**
+     * Starts a new computation.
+     */
+    Digest newDigest() throws IOException {
+        return new Digest();
+    }
+
+
+    /**
+     * Computes the digest of a whole file and verifies it.
+     */
+    void verify(File file) throws IOException {
+        Digest digest = newDigest();
+        digest.update(file, file.length());
+        digest.verify();
+    }
+
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + expected;
+    }
+
+
+    /**
+     * Running digest of one download attempt.
+     */
+    final class Digest {
+
+        private final MessageDigest sha;
+        private final CRC32 crc;
+        private byte[] scratch;
+
+
+        private Digest() throws IOException {
+            if (algorithm == Algorithm.SHA_256) {
+                try {
+                    sha = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new LoaderLocalException("SHA-256 not available.");
+                }
+                crc = null;
+            } else {
+                sha = null;
+                crc = new CRC32();
+            }
+        }
+
+
+        void update(byte[] data, int offset, int count) {
+            if (sha != null) {
+                sha.update(data, offset, count);
+            } else {
+                crc.update(data, offset, count);
+            }
+        }
+
+
+        /**
+         * Feeds the remaining bytes of a buffer without moving its position. CRC32 only takes a
+         * buffer from API 26, so it is fed through a scratch array.
+         */
+        void update(ByteBuffer buffer) {
+            ByteBuffer view = buffer.duplicate();
+            if (sha != null) {
+                sha.update(view);
+                return;
+            }
+            if (scratch == null) {
+                scratch = new byte[16 * 1024];
+            }
+            while (view.hasRemaining()) {
+                int count = Math.min(scratch.length, view.remaining());
+                view.get(scratch, 0, count);
+                crc.update(scratch, 0, count);
+            }
+        }
+
+
+        /**
+         * Feeds the first length bytes of a file, e.g. the part which a resumed download
+         * already holds.
+         */
+        void update(File file, long length) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] data = new byte[64 * 1024];
+                long remaining = length;
+                int count;
+                while (remaining > 0
+                        && (count = in.read(data, 0, (int) Math.min(data.length, remaining))) != -1) {
+                    update(data, 0, count);
+                    remaining -= count;
+                }
+                if (remaining > 0) {
+                    throw new LoaderLocalException("File shorter than " + length + " bytes: " + file);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+
+        /**
+         * Throws if the digest does not match the expected one.
+         */
+        void verify() throws IOException {
+            String actual;
+            if (sha != null) {
+                byte[] digest = sha.digest();
+                StringBuilder sb = new StringBuilder(digest.length * 2);
+                for (byte b : digest) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    sb.append(Character.forDigit(b & 0xF, 16));
+                }
+                actual = sb.toString();
+            } else {
+                actual = Long.toHexString(crc.getValue() | 0x100000000L).substring(1);
+            }
+            if (!actual.equals(expected)) {
+                throw new ChecksumException(algorithm + " mismatch, expected " + expected
+                        + " but was " + actual);
+            }
+        }
+    }
+
+
+    /**
+     * Signals a download whose bytes do not match the expected digest.
+     */
+    public static class ChecksumException extends LoaderLocalException {
+
+        private static final long serialVersionUID = 1L;
+
+
+        /**
+         * Instantiates a new Checksum exception.
+         *
+         * @param message the message
+         */
+        public ChecksumException(String message) {
+            super(message);
+        }
+    }
+
+}
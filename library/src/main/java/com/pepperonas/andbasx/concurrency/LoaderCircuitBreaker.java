@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The type Loader circuit breaker.
+ * <p>
+ * One breaker per host. After a number of consecutive server side failures the breaker opens
+ * and requests to the host fail fast. Once the open period elapsed a single probe request is
+ * let through: success closes the breaker, failure opens it again.
+ */
+public class LoaderCircuitBreaker {
+
+    /**
+     * The enum State.
+     */
+    public enum State {
+        /**
+         * Closed state, requests pass.
+         */
+        CLOSED,
+        /**
+         * Open state, requests fail fast.
+         */
+        OPEN,
+        /**
+         * Half open state, one probe request is in flight.
+         */
+        HALF_OPEN
+    }
+
+
+    private static final Map<String, LoaderCircuitBreaker> BREAKERS = new HashMap<>();
+
+    private static int sFailureThreshold = 5;
+    private static long sOpenDurationMs = 30 * 1000;
+
+    private final String host;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long tripCount;
+    private long rejectedCount;
+
+
+    private LoaderCircuitBreaker(String host) {
+        this.host = host;
+    }
+
+
+    /**
+     * Gets the breaker of a host.
+     *
+     * @param host the host
+     * @return the loader circuit breaker
+     */
+    public static LoaderCircuitBreaker forHost(String host) {
+        synchronized (BREAKERS) {
+            LoaderCircuitBreaker breaker = BREAKERS.get(host);
+            if (breaker == null) {
+                breaker = new LoaderCircuitBreaker(host);
+                BREAKERS.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+
+    /**
+     * Sets the number of consecutive failures which open a breaker.
+     *
+     * @param failureThreshold the failure threshold
+     */
+    public static synchronized void setFailureThreshold(int failureThreshold) {
+        sFailureThreshold = Math.max(1, failureThreshold);
+    }
+
+
+    /**
+     * Sets how long an open breaker rejects requests before probing.
+     *
+     * @param openDurationMs the open duration in ms
+     */
+    public static synchronized void setOpenDuration(long openDurationMs) {
+        sOpenDurationMs = Math.max(0, openDurationMs);
+    }
+
+
+    private static synchronized int getFailureThreshold() {
+        return sFailureThreshold;
+    }
+
+
+    private static synchronized long getOpenDuration() {
+        return sOpenDurationMs;
+    }
+
+
+    /**
+     * Returns whether a request may go to the host.
+     *
+     * @return true if the request may pass
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN
+                && SystemClock.elapsedRealtime() - openedAt >= getOpenDuration()) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+
+    /**
+     * Gets the time until a rejecting breaker lets a request through again.
+     *
+     * @return the delay in ms, 0 if requests pass
+     */
+    public synchronized long getRetryDelay() {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        if (state == State.HALF_OPEN) {
+            // The outcome of the probe in flight decides.
+            return getOpenDuration();
+        }
+        return Math.max(0, openedAt + getOpenDuration() - SystemClock.elapsedRealtime());
+    }
+
+
+    /**
+     * Reports a response from the host.
+     */
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+
+    /**
+     * Reports a server side failure: connection error, timeout or 5xx.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && consecutiveFailures >= getFailureThreshold())) {
+            state = State.OPEN;
+            openedAt = SystemClock.elapsedRealtime();
+            tripCount++;
+        }
+    }
+
+
+    /**
+     * Reports a request which ended without telling anything about the host, e.g. because it
+     * was cancelled. A pending probe is given back so the next request can probe instead.
+     */
+    public synchronized void onAbandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+
+    /**
+     * Gets state.
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+
+    /**
+     * Gets host.
+     *
+     * @return the host
+     */
+    public String getHost() {
+        return host;
+    }
+
+
+    /**
+     * Gets consecutive failures.
+     *
+     * @return the consecutive failures
+     */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+
+    /**
+     * Gets how often the breaker opened.
+     *
+     * @return the trip count
+     */
+    public synchronized long getTripCount() {
+        return tripCount;
+    }
+
+
+    /**
+     * Gets the number of requests which failed fast.
+     *
+     * @return the rejected count
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "LoaderCircuitBreaker{" + host + ", " + state + ", failures=" + consecutiveFailures
+                + ", trips=" + tripCount + ", rejected=" + rejectedCount + "}";
+    }
+
+}
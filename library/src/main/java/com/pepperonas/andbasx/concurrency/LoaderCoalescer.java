@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of in-flight loader requests. An identical request launched while another one is in
+ * flight joins it instead of going to the network; the leading request notifies all joined
+ * listeners when it completes.
+ */
+final class LoaderCoalescer {
+
+    private static final Map<String, Group> IN_FLIGHT = new HashMap<>();
+
+    private static long sJoined;
+
+
+    private LoaderCoalescer() {
+    }
+
+
+    static String key(LoaderTaskUtils.Action action, String url, List<String> params) {
+        StringBuilder sb = new StringBuilder(action == LoaderTaskUtils.Action.RESOLVE ? "POST " : "GET ");
+        sb.append(url);
+        if (params != null) {
+            for (String param : params) {
+                // Length prefixes keep ("a", "bc") and ("ab", "c") apart.
+                sb.append('\n').append(param == null ? -1 : param.length()).append(':').append(param);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Joins the in-flight request with the given key or registers the request as leader. A
+     * joining request raises the leader's priority if its own is higher.
+     *
+     * @return the leading request if the request joined one, null if it leads itself
+     */
+    static synchronized LoaderRequest join(String key, LoaderRequest request) {
+        Group group = IN_FLIGHT.get(key);
+        if (group == null) {
+            IN_FLIGHT.put(key, new Group(request));
+            return null;
+        }
+        group.followers.add(request);
+        if (request.getPriority().ordinal() < group.leader.getPriority().ordinal()) {
+            group.leader.setPriority(request.getPriority());
+        }
+        sJoined++;
+        return group.leader;
+    }
+
+
+    /**
+     * Removes a cancelled follower.
+     */
+    static synchronized void leave(String key, LoaderRequest request) {
+        Group group = IN_FLIGHT.get(key);
+        if (group != null) {
+            group.followers.remove(request);
+        }
+    }
+
+
+    /**
+     * Removes the in-flight request of a cancelled leader unless followers joined it.
+     *
+     * @return false if followers still need the download
+     */
+    static synchronized boolean removeIfAlone(String key) {
+        Group group = IN_FLIGHT.get(key);
+        if (group != null && !group.followers.isEmpty()) {
+            return false;
+        }
+        IN_FLIGHT.remove(key);
+        return true;
+    }
+
+
+    /**
+     * Removes the in-flight request. Requests launched afterwards go to the network again.
+     *
+     * @return the requests which joined
+     */
+    static synchronized List<LoaderRequest> complete(String key) {
+        Group group = IN_FLIGHT.remove(key);
+        if (group == null || group.followers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(group.followers);
+    }
+
+
+    /**
+     * Gets the followers with the given tag whose leader runs on the engine.
+     */
+    static synchronized List<LoaderRequest> getFollowers(Object tag, LoaderEngine engine) {
+        List<LoaderRequest> matches = new ArrayList<>();
+        for (Group group : IN_FLIGHT.values()) {
+            if (group.leader.getEngine() != engine) {
+                continue;
+            }
+            for (LoaderRequest follower : group.followers) {
+                if (tag.equals(follower.getTag())) {
+                    matches.add(follower);
+                }
+            }
+        }
+        return matches;
+    }
+
+
+    static synchronized long getJoinedCount() {
+        return sJoined;
+    }
+
+
+    private static final class Group {
+
+        private final LoaderRequest leader;
+        private final List<LoaderRequest> followers = new ArrayList<>(0);
+
+
+        Group(LoaderRequest leader) {
+            this.leader = leader;
+        }
+    }
+
+}
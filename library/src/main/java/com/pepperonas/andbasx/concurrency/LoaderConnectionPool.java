@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The type Loader connection pool.
+ * <p>
+ * Keeps the platform's per-host keep-alive pool usable: connections are opened exactly once per
+ * request, response bodies are drained before the stream is closed (so the socket can be handed
+ * back instead of being torn down) and the reuse ratio is estimated per pool. The platform's
+ * keep-alive settings are process-wide and left alone unless
+ * {@link #setSystemKeepAlive(int)} is called.
+ */
+public class LoaderConnectionPool {
+
+    private static final String TAG = "LoaderConnectionPool";
+
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private static LoaderConnectionPool sDefault;
+
+    private final Map<String, ArrayDeque<Long>> idle = new HashMap<>();
+    private final int maxIdlePerHost;
+    private final long keepAliveMs;
+
+    private long opened;
+    private long estimatedReused;
+    private long discarded;
+
+
+    /**
+     * Instantiates a new Loader connection pool.
+     *
+     * @param maxIdlePerHost the max idle connections per host
+     * @param keepAliveMs    the keep alive duration of idle connections in ms
+     */
+    public LoaderConnectionPool(int maxIdlePerHost, long keepAliveMs) {
+        this.maxIdlePerHost = Math.max(1, maxIdlePerHost);
+        this.keepAliveMs = keepAliveMs;
+    }
+
+
+    /**
+     * Enables HTTP keep-alive for the whole process and sets the number of idle connections the
+     * platform keeps per host. Affects every HttpURLConnection of the app, call it once at start
+     * up if the defaults do not fit.
+     *
+     * @param maxConnections the max idle connections per host
+     */
+    public static void setSystemKeepAlive(int maxConnections) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(1, maxConnections)));
+    }
+
+
+    /**
+     * Gets the default pool.
+     *
+     * @return the default pool
+     */
+    public static synchronized LoaderConnectionPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new LoaderConnectionPool(5, 5 * 60 * 1000);
+        }
+        return sDefault;
+    }
+
+
+    /**
+     * Opens a connection with the timeouts applied before connecting.
+     *
+     * @param url               the url
+     * @param connectionTimeout the connection timeout
+     * @param readTimeout       the read timeout
+     * @return the http url connection
+     * @throws IOException the io exception
+     */
+    public HttpURLConnection open(URL url, int connectionTimeout, int readTimeout)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectionTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Connection", "keep-alive");
+        acquire(url.getAuthority());
+        return conn;
+    }
+
+
+    /**
+     * Counts a connection as reused if a connection to its host was released within the keep
+     * alive duration. The platform does not tell whether it actually picked up that socket.
+     */
+    private synchronized void acquire(String host) {
+        opened++;
+        ArrayDeque<Long> released = idle.get(host);
+        if (released == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        while (!released.isEmpty()) {
+            long at = released.pollLast();
+            if (now - at < keepAliveMs) {
+                estimatedReused++;
+                break;
+            }
+        }
+        if (released.isEmpty()) {
+            idle.remove(host);
+        }
+    }
+
+
+    /**
+     * Drains and closes the response so the underlying socket can be reused. Connections which
+     * cannot be drained cheaply are disconnected instead.
+     *
+     * @param conn the connection, may be null
+     * @param in   the response stream, may be null
+     */
+    public void release(HttpURLConnection conn, InputStream in) {
+        release(conn, in, true);
+    }
+
+
+    /**
+     * Closes the response. With drain set, the rest of the body is read first so the underlying
+     * socket can be reused; without, e.g. for a cancelled request, the connection is disconnected
+     * right away.
+     *
+     * @param conn  the connection, may be null
+     * @param in    the response stream, may be null
+     * @param drain whether to drain the rest of the body
+     */
+    public void release(HttpURLConnection conn, InputStream in, boolean drain) {
+        if (conn == null) {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return;
+        }
+        boolean reusable = drain && in != null && drain(in)
+                && !"close".equalsIgnoreCase(conn.getHeaderField("Connection"));
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (!reusable) {
+            conn.disconnect();
+            synchronized (this) {
+                discarded++;
+            }
+            return;
+        }
+        String host = conn.getURL().getAuthority();
+        synchronized (this) {
+            ArrayDeque<Long> released = idle.get(host);
+            if (released == null) {
+                released = new ArrayDeque<>();
+                idle.put(host, released);
+            }
+            if (released.size() >= maxIdlePerHost) {
+                released.pollFirst();
+            }
+            released.addLast(System.currentTimeMillis());
+        }
+    }
+
+
+    private static boolean drain(InputStream in) {
+        byte[] skip = new byte[1024];
+        int total = 0;
+        try {
+            int count;
+            while ((count = in.read(skip)) != -1) {
+                total += count;
+                if (total > DRAIN_LIMIT) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Gets the number of opened connections.
+     *
+     * @return the opened count
+     */
+    public synchronized long getOpenedCount() {
+        return opened;
+    }
+
+
+    /**
+     * Gets the estimated number of reused connections, those opened while a released connection
+     * to the same host was still within the keep alive duration.
+     *
+     * @return the estimated reuse count
+     */
+    public synchronized long getEstimatedReuseCount() {
+        return estimatedReused;
+    }
+
+
+    /**
+     * Gets the number of connections which had to be torn down after use.
+     *
+     * @return the discarded count
+     */
+    public synchronized long getDiscardedCount() {
+        return discarded;
+    }
+
+
+    /**
+     * Gets the estimated ratio of reused connections.
+     *
+     * @return the estimated reuse ratio in [0, 1]
+     * @see #getEstimatedReuseCount()
+     */
+    public synchronized float getEstimatedReuseRatio() {
+        return opened == 0 ? 0f : (float) estimatedReused / opened;
+    }
+
+
+    /**
+     * Resets the counters.
+     */
+    public synchronized void resetStats() {
+        opened = 0;
+        estimatedReused = 0;
+        discarded = 0;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{opened=" + opened + ", estimatedReused=" + estimatedReused
+                + ", discarded=" + discarded + "}";
+    }
+
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The type Loader engine.
+ * <p>
+ * Runs {@link LoaderTaskUtils} requests on a bounded worker pool. A request is only handed to a
+ * worker when a worker is free and its host is below the per-host limit; everything else waits
+ * in a queue of limited depth, ordered by {@link LoaderTaskUtils.Priority}. Prefetches never take
+ * the last free worker, so visible content does not queue behind them.
+ */
+public class LoaderEngine {
+
+    private static final String TAG = "LoaderEngine";
+
+    private static LoaderEngine sDefault;
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private final int id = IDS.incrementAndGet();
+    private final ThreadPoolExecutor executor;
+    private final ArrayList<Job> pending = new ArrayList<>();
+    private final Set<Job> active = new HashSet<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+
+    private int maxWorkers;
+    private int maxPerHost;
+    private int maxQueued;
+    private int prefetchDepth = Integer.MAX_VALUE;
+    private LoaderTaskUtils.Priority pausedFrom;
+    private int running;
+    private int runningPrefetch;
+    private long sequence;
+
+
+    private LoaderEngine(Builder builder) {
+        this.maxWorkers = builder.maxWorkers;
+        this.maxPerHost = builder.maxPerHost;
+        this.maxQueued = builder.maxQueued;
+
+        this.executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, builder.keepAliveMs,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new LoaderThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Gets the default engine used by {@link LoaderTaskUtils.Builder#launch()}.
+     *
+     * @return the default engine
+     */
+    public static synchronized LoaderEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new Builder().build();
+        }
+        return sDefault;
+    }
+
+
+    /**
+     * Replaces the default engine.
+     *
+     * @param engine the engine
+     */
+    public static synchronized void setDefault(LoaderEngine engine) {
+        sDefault = engine;
+    }
+
+
+    /**
+     * Returns an executor which runs the submitted tasks under the limits of the given host.
+     *
+     * @param host the host
+     * @return the executor
+     */
+    public Executor forHost(final String host) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                enqueue(new Job(host, null, command));
+            }
+        };
+    }
+
+
+    /**
+     * Returns an executor which runs the task of a request with its host limit and priority.
+     *
+     * @param request the request
+     * @return the executor
+     */
+    Executor forRequest(final LoaderRequest request) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                enqueue(new Job(request.getHost(), request, command));
+            }
+        };
+    }
+
+
+    private void enqueue(Job job) {
+        synchronized (this) {
+            if (pending.size() >= maxQueued) {
+                throw new RejectedExecutionException(
+                        "Loader queue is full (" + maxQueued + " pending requests).");
+            }
+            job.sequence = sequence++;
+            int index = pending.size();
+            while (index > 0 && ORDER.compare(pending.get(index - 1), job) > 0) {
+                index--;
+            }
+            pending.add(index, job);
+        }
+        promote();
+    }
+
+
+    private void promote() {
+        ArrayList<Job> ready = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Job> it = pending.iterator();
+            while (it.hasNext() && running < maxWorkers) {
+                Job job = it.next();
+                LoaderTaskUtils.Priority priority = job.getPriority();
+                if (pausedFrom != null && priority.ordinal() >= pausedFrom.ordinal()) {
+                    // Pending jobs are ordered, only paused priorities follow.
+                    break;
+                }
+                if (getRunning(job.host) >= maxPerHost) {
+                    continue;
+                }
+                if (priority == LoaderTaskUtils.Priority.PREFETCH
+                        && (runningPrefetch >= prefetchDepth
+                        || (maxWorkers > 1 && running >= maxWorkers - 1))) {
+                    // Pending jobs are ordered, only prefetches follow.
+                    break;
+                }
+                it.remove();
+                running++;
+                job.prefetch = priority == LoaderTaskUtils.Priority.PREFETCH;
+                if (job.prefetch) {
+                    runningPrefetch++;
+                }
+                runningPerHost.put(job.host, getRunning(job.host) + 1);
+                active.add(job);
+                ready.add(job);
+            }
+        }
+        for (Job job : ready) {
+            executor.execute(job);
+        }
+    }
+
+
+    private void finished(Job job) {
+        synchronized (this) {
+            running--;
+            if (job.prefetch) {
+                runningPrefetch--;
+            }
+            active.remove(job);
+            int count = getRunning(job.host) - 1;
+            if (count <= 0) {
+                runningPerHost.remove(job.host);
+            } else {
+                runningPerHost.put(job.host, count);
+            }
+        }
+        promote();
+    }
+
+
+    /**
+     * Re-sorts the queue after a priority change.
+     */
+    void reprioritize() {
+        synchronized (this) {
+            Collections.sort(pending, ORDER);
+        }
+        promote();
+    }
+
+
+    /**
+     * Drops a request from the queue if it did not start yet.
+     *
+     * @return true if the request was still queued
+     */
+    synchronized boolean remove(LoaderRequest request) {
+        Iterator<Job> it = pending.iterator();
+        while (it.hasNext()) {
+            if (it.next().request == request) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Cancels all queued and running requests with the given tag.
+     *
+     * @param tag the tag, e.g. an Activity
+     * @return the number of cancelled requests
+     */
+    public int cancelAll(Object tag) {
+        // Followers go first, so leaders without other followers are cancelled, not detached.
+        List<LoaderRequest> matches = LoaderCoalescer.getFollowers(tag, this);
+        synchronized (this) {
+            for (Job job : pending) {
+                if (job.request != null && tag.equals(job.request.getTag())) {
+                    matches.add(job.request);
+                }
+            }
+            for (Job job : active) {
+                if (job.request != null && tag.equals(job.request.getTag())) {
+                    matches.add(job.request);
+                }
+            }
+        }
+        for (LoaderRequest request : matches) {
+            request.cancel();
+        }
+        return matches.size();
+    }
+
+
+    private int getRunning(String host) {
+        Integer count = runningPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+
+    /**
+     * Sets the maximum number of concurrently running requests.
+     *
+     * @param maxWorkers the max workers
+     */
+    public void setMaxWorkers(int maxWorkers) {
+        synchronized (this) {
+            this.maxWorkers = Math.max(1, maxWorkers);
+            if (this.maxWorkers > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(this.maxWorkers);
+                executor.setCorePoolSize(this.maxWorkers);
+            } else {
+                executor.setCorePoolSize(this.maxWorkers);
+                executor.setMaximumPoolSize(this.maxWorkers);
+            }
+        }
+        promote();
+    }
+
+
+    /**
+     * Sets the maximum number of concurrently running requests per host.
+     *
+     * @param maxPerHost the max per host
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        synchronized (this) {
+            this.maxPerHost = Math.max(1, maxPerHost);
+        }
+        promote();
+    }
+
+
+    /**
+     * Sets the maximum number of requests waiting for a worker.
+     *
+     * @param maxQueued the max queued
+     */
+    public synchronized void setMaxQueued(int maxQueued) {
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+
+    /**
+     * Sets how many {@link LoaderTaskUtils.Priority#PREFETCH} requests may run at once.
+     *
+     * @param prefetchDepth the prefetch depth, 0 to hold all prefetches back
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        synchronized (this) {
+            this.prefetchDepth = Math.max(0, prefetchDepth);
+        }
+        promote();
+    }
+
+
+    /**
+     * Holds queued requests of the given priority and all lower priorities back until
+     * {@link #resume()} is called. Running requests are not affected.
+     *
+     * @param from the highest priority to pause
+     */
+    public synchronized void pause(LoaderTaskUtils.Priority from) {
+        this.pausedFrom = from;
+    }
+
+
+    /**
+     * Starts the requests held back by {@link #pause(LoaderTaskUtils.Priority)}.
+     */
+    public void resume() {
+        synchronized (this) {
+            this.pausedFrom = null;
+        }
+        promote();
+    }
+
+
+    /**
+     * Returns whether queued requests are held back.
+     *
+     * @return the boolean
+     */
+    public synchronized boolean isPaused() {
+        return pausedFrom != null;
+    }
+
+
+    /**
+     * Gets prefetch depth.
+     *
+     * @return the prefetch depth
+     */
+    public synchronized int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+
+    /**
+     * Gets max workers.
+     *
+     * @return the max workers
+     */
+    public synchronized int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+
+    /**
+     * Gets the id which tells this engine apart from others in the process.
+     *
+     * @return the id
+     */
+    int getId() {
+        return id;
+    }
+
+
+    /**
+     * Gets max per host.
+     *
+     * @return the max per host
+     */
+    public synchronized int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+
+    /**
+     * Gets max queued.
+     *
+     * @return the max queued
+     */
+    public synchronized int getMaxQueued() {
+        return maxQueued;
+    }
+
+
+    /**
+     * Gets the number of running requests.
+     *
+     * @return the running count
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+
+    /**
+     * Gets the number of requests waiting for a worker.
+     *
+     * @return the queued count
+     */
+    public synchronized int getQueuedCount() {
+        return pending.size();
+    }
+
+
+    private static final Comparator<Job> ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            int diff = a.getPriority().ordinal() - b.getPriority().ordinal();
+            if (diff != 0) {
+                return diff;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+        }
+    };
+
+
+    private final class Job implements Runnable {
+
+        private final String host;
+        private final LoaderRequest request;
+        private final Runnable command;
+        private long sequence;
+        private boolean prefetch;
+
+
+        Job(String host, LoaderRequest request, Runnable command) {
+            this.host = host == null ? "" : host;
+            this.request = request;
+            this.command = command;
+        }
+
+
+        LoaderTaskUtils.Priority getPriority() {
+            return request != null ? request.getPriority() : LoaderTaskUtils.Priority.NORMAL;
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                command.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+
+
+    private static final class LoaderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger(1);
+
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG + " #" + count.getAndIncrement());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+
+    /**
+     * The type Builder.
+     */
+    public static class Builder {
+
+        private int maxWorkers = 4;
+        private int maxPerHost = 4;
+        private int maxQueued = 128;
+        private long keepAliveMs = 30000;
+
+
+        /**
+         * Sets the maximum number of concurrently running requests.
+         *
+         * @param maxWorkers the max workers
+         * @return the builder
+         */
+        public Builder setMaxWorkers(int maxWorkers) {
+            this.maxWorkers = Math.max(1, maxWorkers);
+            return this;
+        }
+
+
+        /**
+         * Sets the maximum number of concurrently running requests per host.
+         *
+         * @param maxPerHost the max per host
+         * @return the builder
+         */
+        public Builder setMaxPerHost(int maxPerHost) {
+            this.maxPerHost = Math.max(1, maxPerHost);
+            return this;
+        }
+
+
+        /**
+         * Sets the maximum number of requests waiting for a worker.
+         *
+         * @param maxQueued the max queued
+         * @return the builder
+         */
+        public Builder setMaxQueued(int maxQueued) {
+            this.maxQueued = Math.max(0, maxQueued);
+            return this;
+        }
+
+
+        /**
+         * Sets how long idle worker threads are kept alive.
+         *
+         * @param keepAliveMs the keep alive in ms
+         * @return the builder
+         */
+        public Builder setKeepAlive(long keepAliveMs) {
+            this.keepAliveMs = Math.max(1, keepAliveMs);
+            return this;
+        }
+
+
+        /**
+         * Build loader engine.
+         *
+         * @return the loader engine
+         */
+        public LoaderEngine build() {
+            return new LoaderEngine(this);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.io.IOException;
+
+/**
+ * Signals a loader failure caused on the client side, e.g. a body above the size limit, a
+ * checksum mismatch or an unwritable target. Such failures are neither retried nor counted
+ * against the host by the {@link LoaderCircuitBreaker}.
+ */
+public class LoaderLocalException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * Instantiates a new Loader local exception.
+     *
+     * @param message the message
+     */
+    public LoaderLocalException(String message) {
+        super(message);
+    }
+
+
+    /**
+     * Instantiates a new Loader local exception.
+     *
+     * @param message the message
+     * @param cause   the cause
+     */
+    public LoaderLocalException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
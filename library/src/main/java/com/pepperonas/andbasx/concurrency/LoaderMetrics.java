@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.LoaderMetricsListener;
+
+/**
+ * The type Loader metrics.
+ * <p>
+ * Timings of one {@link LoaderTaskUtils} request. The phases describe the last attempt:
+ * <ul>
+ * <li>queue wait: from launch until a worker picked the request up</li>
+ * <li>connect: DNS lookup, TCP and TLS handshake; HttpURLConnection does not report them
+ * separately</li>
+ * <li>time to first byte: from the request being sent until the response headers arrived</li>
+ * <li>transfer: time spent reading the body from the connection, not counting what the
+ * consumer of the stream does between reads</li>
+ * <li>dispatch: time spent in listener callbacks</li>
+ * </ul>
+ * A phase which did not happen, e.g. connect for a response served from cache, is 0. Every
+ * request is reported exactly once, including requests which never ran and requests which
+ * joined an identical in-flight request.
+ */
+public final class LoaderMetrics {
+
+    private static volatile LoaderMetricsListener sListener = LoaderMetricsAggregator.getDefault();
+
+    private final LoaderTaskUtils.Action action;
+    private final String url;
+    private final String host;
+    private final LoaderTaskUtils.Priority priority;
+
+    Outcome outcome = Outcome.FAILURE;
+    int responseCode = -1;
+    int attempts;
+    long queueWaitMs;
+    long connectMs;
+    long ttfbMs;
+    long transferMs;
+    long dispatchMs;
+    long totalMs;
+    long bytesSent;
+    long bytesReceived;
+    boolean coalesced;
+
+
+    /**
+     * The enum Outcome.
+     */
+    public enum Outcome {
+        /**
+         * The listener received a result.
+         */
+        SUCCESS,
+        /**
+         * The listener received a failure.
+         */
+        FAILURE,
+        /**
+         * The request was cancelled.
+         */
+        CANCELLED,
+        /**
+         * The engine's queue was full, the request never ran.
+         */
+        REJECTED
+    }
+
+
+    LoaderMetrics(LoaderTaskUtils.Action action, String url, String host,
+                  LoaderTaskUtils.Priority priority) {
+        this.action = action;
+        this.url = url;
+        this.host = host;
+        this.priority = priority;
+    }
+
+
+    /**
+     * Sets the listener which receives the metrics of every request. Defaults to
+     * {@link LoaderMetricsAggregator#getDefault()}, null disables reporting.
+     *
+     * @param listener the listener
+     */
+    public static void setListener(LoaderMetricsListener listener) {
+        sListener = listener;
+    }
+
+
+    /**
+     * Gets the listener.
+     *
+     * @return the listener
+     */
+    public static LoaderMetricsListener getListener() {
+        return sListener;
+    }
+
+
+    /**
+     * Resets the phases before an attempt.
+     */
+    void startAttempt() {
+        attempts++;
+        connectMs = 0;
+        ttfbMs = 0;
+        transferMs = 0;
+        bytesSent = 0;
+        bytesReceived = 0;
+    }
+
+
+    /**
+     * Gets action.
+     *
+     * @return the action
+     */
+    public LoaderTaskUtils.Action getAction() {
+        return action;
+    }
+
+
+    /**
+     * Gets url.
+     *
+     * @return the url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+
+    /**
+     * Gets host.
+     *
+     * @return the host
+     */
+    public String getHost() {
+        return host;
+    }
+
+
+    /**
+     * Gets priority.
+     *
+     * @return the priority
+     */
+    public LoaderTaskUtils.Priority getPriority() {
+        return priority;
+    }
+
+
+    /**
+     * Gets outcome.
+     *
+     * @return the outcome
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+
+    /**
+     * Gets the response code of the last attempt.
+     *
+     * @return the response code or -1 if no response arrived
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+
+    /**
+     * Gets attempts.
+     *
+     * @return the attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+
+    /**
+     * Returns whether the request joined an identical in-flight request instead of loading
+     * itself. Its phases are 0 then, the outcome is the one delivered by the other request.
+     *
+     * @return the boolean
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+
+    /**
+     * Gets queue wait ms.
+     *
+     * @return the queue wait ms
+     */
+    public long getQueueWaitMs() {
+        return queueWaitMs;
+    }
+
+
+    /**
+     * Gets connect ms.
+     *
+     * @return the connect ms
+     */
+    public long getConnectMs() {
+        return connectMs;
+    }
+
+
+    /**
+     * Gets time to first byte ms.
+     *
+     * @return the time to first byte ms
+     */
+    public long getTimeToFirstByteMs() {
+        return ttfbMs;
+    }
+
+
+    /**
+     * Gets transfer ms.
+     *
+     * @return the transfer ms
+     */
+    public long getTransferMs() {
+        return transferMs;
+    }
+
+
+    /**
+     * Gets dispatch ms.
+     *
+     * @return the dispatch ms
+     */
+    public long getDispatchMs() {
+        return dispatchMs;
+    }
+
+
+    /**
+     * Gets the time from launch until the request finished, including retries.
+     *
+     * @return the total ms
+     */
+    public long getTotalMs() {
+        return totalMs;
+    }
+
+
+    /**
+     * Gets bytes sent.
+     *
+     * @return the bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+
+    /**
+     * Gets the body bytes received on the wire, i.e. before decompression.
+     *
+     * @return the bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+
+    @Override
+    public String toString() {
+        return "LoaderMetrics{" + action + " " + url + ", outcome=" + outcome
+                + ", code=" + responseCode + ", attempts=" + attempts
+                + ", queue=" + queueWaitMs + ", connect=" + connectMs + ", ttfb=" + ttfbMs
+                + ", transfer=" + transferMs + ", dispatch=" + dispatchMs + ", total=" + totalMs
+                + ", sent=" + bytesSent + ", received=" + bytesReceived + "}";
+    }
+
+}
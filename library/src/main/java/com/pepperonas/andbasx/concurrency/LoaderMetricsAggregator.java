@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.LoaderMetricsListener;
+import com.pepperonas.andbasx.math.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The type Loader metrics aggregator.
+ * <p>
+ * Default {@link LoaderMetricsListener}: keeps one lock free {@link Histogram} per phase and
+ * counts outcomes, so p95 latencies can be read without storing single requests.
+ */
+public class LoaderMetricsAggregator implements LoaderMetricsListener {
+
+    private static final String TAG = "LoaderMetricsAggregator";
+
+    private static final LoaderMetricsAggregator DEFAULT = new LoaderMetricsAggregator();
+
+    private final Histogram queueWait = new Histogram();
+    private final Histogram connect = new Histogram();
+    private final Histogram timeToFirstByte = new Histogram();
+    private final Histogram transfer = new Histogram();
+    private final Histogram dispatch = new Histogram();
+    private final Histogram total = new Histogram();
+
+    private final AtomicLong successCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+
+    /**
+     * Gets the aggregator which is installed by default.
+     *
+     * @return the default aggregator
+     */
+    public static LoaderMetricsAggregator getDefault() {
+        return DEFAULT;
+    }
+
+
+    @Override
+    public void onLoaderMetrics(LoaderMetrics metrics) {
+        queueWait.record(metrics.getQueueWaitMs());
+        if (metrics.getResponseCode() != -1 && !metrics.isCoalesced()) {
+            connect.record(metrics.getConnectMs());
+            timeToFirstByte.record(metrics.getTimeToFirstByteMs());
+            transfer.record(metrics.getTransferMs());
+        }
+        dispatch.record(metrics.getDispatchMs());
+        total.record(metrics.getTotalMs());
+
+        switch (metrics.getOutcome()) {
+            case SUCCESS:
+                successCount.incrementAndGet();
+                break;
+            case FAILURE:
+                failureCount.incrementAndGet();
+                break;
+            case CANCELLED:
+                cancelledCount.incrementAndGet();
+                break;
+            case REJECTED:
+                rejectedCount.incrementAndGet();
+                break;
+        }
+        if (metrics.getAttempts() > 1) {
+            retryCount.addAndGet(metrics.getAttempts() - 1);
+        }
+        bytesSent.addAndGet(metrics.getBytesSent());
+        bytesReceived.addAndGet(metrics.getBytesReceived());
+    }
+
+
+    /**
+     * Gets queue wait.
+     *
+     * @return the queue wait
+     */
+    public Histogram getQueueWait() {
+        return queueWait;
+    }
+
+
+    /**
+     * Gets connect.
+     *
+     * @return the connect
+     */
+    public Histogram getConnect() {
+        return connect;
+    }
+
+
+    /**
+     * Gets time to first byte.
+     *
+     * @return the time to first byte
+     */
+    public Histogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+
+    /**
+     * Gets transfer.
+     *
+     * @return the transfer
+     */
+    public Histogram getTransfer() {
+        return transfer;
+    }
+
+
+    /**
+     * Gets dispatch.
+     *
+     * @return the dispatch
+     */
+    public Histogram getDispatch() {
+        return dispatch;
+    }
+
+
+    /**
+     * Gets total.
+     *
+     * @return the total
+     */
+    public Histogram getTotal() {
+        return total;
+    }
+
+
+    /**
+     * Gets success count.
+     *
+     * @return the success count
+     */
+    public long getSuccessCount() {
+        return successCount.get();
+    }
+
+
+    /**
+     * Gets failure count.
+     *
+     * @return the failure count
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+
+    /**
+     * Gets cancelled count.
+     *
+     * @return the cancelled count
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+
+    /**
+     * Gets rejected count.
+     *
+     * @return the rejected count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+
+    /**
+     * Gets retry count.
+     *
+     * @return the retry count
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+
+    /**
+     * Gets bytes sent.
+     *
+     * @return the bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+
+    /**
+     * Gets bytes received.
+     *
+     * @return the bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+
+    /**
+     * Resets all histograms and counters.
+     */
+    public void reset() {
+        queueWait.reset();
+        connect.reset();
+        timeToFirstByte.reset();
+        transfer.reset();
+        dispatch.reset();
+        total.reset();
+        successCount.set(0);
+        failureCount.set(0);
+        cancelledCount.set(0);
+        rejectedCount.set(0);
+        retryCount.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+    }
+
+
+    @Override
+    public String toString() {
+        return TAG + "{success=" + successCount + ", failure=" + failureCount
+                + ", cancelled=" + cancelledCount + ", retries=" + retryCount
+                + ",\n  queue=" + queueWait + ",\n  connect=" + connect
+                + ",\n  ttfb=" + timeToFirstByte + ",\n  transfer=" + transfer
+                + ",\n  dispatch=" + dispatch + ",\n  total=" + total + "}";
+    }
+
+}
@@ -0,0 +1,671 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import android.os.Looper;
+
+import com.pepperonas.andbasx.AndBasx;
+import com.pepperonas.andbasx.interfaces.LoaderTaskListener;
+import com.pepperonas.andbasx.system.NetworkUtils;
+import com.pepperonas.andbasx.system.SystemUtils;
+import com.pepperonas.jbasx.log.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+/**
+ * The type Loader offline queue.
+ * <p>
+ * Durable queue of {@link LoaderTaskUtils.Action#RESOLVE} requests which failed without a
+ * connection. The queue is an append-only journal: an enqueue appends one record, a completed
+ * or superseded request appends a tombstone. Every record is length prefixed and checksummed,
+ * so a record torn by process death is cut off on the next start. The journal is rewritten
+ * with the live requests only once tombstones dominate it.
+ * <p>
+ * Queued requests are replayed in batches whenever {@link NetworkUtils} reports a network.
+ */
+public class LoaderOfflineQueue implements NetworkUtils.NetworkListener {
+
+    private static final String TAG = "LoaderOfflineQueue";
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final int MAX_RECORD = 1024 * 1024;
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    private static final long FAILED_BATCH_DELAY_MS = 2000;
+
+    private final File dir;
+    private final File journal;
+    private final int batchSize;
+    private final int maxAttempts;
+
+    private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<>();
+    private final Map<String, Long> byKey = new HashMap<>();
+
+    private DataOutputStream out;
+    private long journalLength;
+    private int records;
+    private long nextId;
+    private int inFlight;
+    private boolean batchFailed;
+    private long replayDelay;
+    private boolean started;
+    private LoaderTaskListener replayListener;
+    private TimerUtils.Task replayTimer;
+
+    private final Runnable replayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            replay();
+        }
+    };
+
+
+    /**
+     * Instantiates a new Loader offline queue which replays 10 requests per batch and drops a
+     * request after 5 failed replays.
+     *
+     * @param dir the directory of the journal
+     */
+    public LoaderOfflineQueue(File dir) {
+        this(dir, 10, 5);
+    }
+
+
+    /**
+     * Instantiates a new Loader offline queue.
+     *
+     * @param dir         the directory of the journal
+     * @param batchSize   the number of requests replayed at once
+     * @param maxAttempts the number of replays before a request is dropped
+     */
+    public LoaderOfflineQueue(File dir, int batchSize, int maxAttempts) {
+        this.dir = dir;
+        this.journal = new File(dir, JOURNAL);
+        this.batchSize = Math.max(1, batchSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "LoaderOfflineQueue - failed to create " + dir);
+        }
+        restore();
+    }
+
+
+    private void restore() {
+        long valid = 0;
+        RandomAccessFile file = null;
+        try {
+            if (journal.exists()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(journal), 8192));
+                try {
+                    while (true) {
+                        byte[] payload = readRecord(in);
+                        if (payload == null) {
+                            break;
+                        }
+                        apply(payload);
+                        records++;
+                        valid += 8 + payload.length;
+                    }
+                } finally {
+                    close(in);
+                }
+                if (valid < journal.length()) {
+                    Log.w(TAG, "restore - dropping torn tail of " + (journal.length() - valid)
+                            + " bytes");
+                    file = new RandomAccessFile(journal, "rw");
+                    file.setLength(valid);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "restore - " + e.getMessage());
+        } finally {
+            close(file);
+        }
+        try {
+            openJournal();
+        } catch (IOException e) {
+            Log.e(TAG, "restore - failed to open journal: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Returns the payload of the next record or null at the end of the journal or at a torn or
+     * corrupt record.
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length <= 0 || length > MAX_RECORD) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 check = new CRC32();
+            check.update(payload);
+            return (int) check.getValue() == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long id = in.readLong();
+        nextId = Math.max(nextId, id + 1);
+        if (type == RECORD_ADD) {
+            String key = in.readUTF();
+            String url = in.readUTF();
+            int count = in.readInt();
+            List<String> params = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                params.add(in.readUTF());
+            }
+            put(new Entry(id, key, url, params));
+        } else if (type == RECORD_REMOVE) {
+            Entry entry = pending.remove(id);
+            if (entry != null && !entry.key.isEmpty()) {
+                byKey.remove(entry.key);
+            }
+        }
+    }
+
+
+    /**
+     * Adds an entry and returns the id of the entry it supersedes, or -1.
+     */
+    private long put(Entry entry) {
+        pending.put(entry.id, entry);
+        if (entry.key.isEmpty()) {
+            return -1;
+        }
+        Long superseded = byKey.put(entry.key, entry.id);
+        if (superseded != null && pending.remove(superseded) != null) {
+            return superseded;
+        }
+        return -1;
+    }
+
+
+    private void openJournal() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journal, true), 8192));
+        journalLength = journal.length();
+    }
+
+
+    /**
+     * Appends a request to the journal. A queued request with the same key is superseded.
+     *
+     * @param key    the collapse key, null to never collapse
+     * @param url    the url
+     * @param params the alternating keys and values
+     * @return false if the request could not be written to the journal and is not queued
+     */
+    public synchronized boolean enqueue(String key, String url, List<String> params) {
+        Entry entry = new Entry(nextId++, key == null ? "" : key, url,
+                params == null ? new ArrayList<String>() : new ArrayList<>(params));
+        try {
+            append(encode(entry));
+        } catch (IOException e) {
+            Log.e(TAG, "enqueue - " + e.getMessage());
+            return false;
+        }
+        long superseded = put(entry);
+        if (superseded != -1) {
+            Log.d(TAG, "enqueue - " + entry.key + " supersedes #" + superseded);
+            appendRemove(superseded);
+        }
+        maybeCompact();
+        return true;
+    }
+
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(RECORD_ADD);
+        record.writeLong(entry.id);
+        record.writeUTF(entry.key);
+        record.writeUTF(entry.url);
+        record.writeInt(entry.params.size());
+        for (String param : entry.params) {
+            record.writeUTF(param);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    private void remove(Entry entry) {
+        if (pending.remove(entry.id) == null) {
+            return;
+        }
+        if (!entry.key.isEmpty() && Long.valueOf(entry.id).equals(byKey.get(entry.key))) {
+            byKey.remove(entry.key);
+        }
+        appendRemove(entry.id);
+        maybeCompact();
+    }
+
+
+    private void appendRemove(long id) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(RECORD_REMOVE);
+            record.writeLong(id);
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            Log.e(TAG, "appendRemove - " + e.getMessage());
+        }
+    }
+
+
+    private void append(byte[] payload) throws IOException {
+        if (out == null) {
+            openJournal();
+        }
+        try {
+            writeRecord(out, payload);
+            // Reach the OS before returning, the record then survives process death.
+            out.flush();
+        } catch (IOException e) {
+            // Cut off the torn record, records appended after it would be lost on restore.
+            close(out);
+            out = null;
+            truncate(journalLength);
+            throw e;
+        }
+        journalLength += 8 + payload.length;
+        records++;
+    }
+
+
+    private void truncate(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(journal, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "truncate - " + e.getMessage());
+        } finally {
+            close(file);
+        }
+    }
+
+
+    private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+
+    /**
+     * Rewrites the journal with the live entries once most records are dead.
+     */
+    private void maybeCompact() {
+        if (records < COMPACT_MIN_RECORDS || records < 2 * pending.size() + COMPACT_MIN_RECORDS) {
+            return;
+        }
+        File tmp = new File(dir, JOURNAL_TMP);
+        DataOutputStream compacted = null;
+        try {
+            compacted = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), 8192));
+            for (Entry entry : pending.values()) {
+                writeRecord(compacted, encode(entry));
+            }
+            compacted.close();
+            compacted = null;
+
+            close(out);
+            out = null;
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("Failed to move " + tmp + " to " + journal);
+            }
+            records = pending.size();
+            Log.d(TAG, "maybeCompact - " + records + " live records");
+        } catch (IOException e) {
+            Log.e(TAG, "maybeCompact - " + e.getMessage());
+            close(compacted);
+            tmp.delete();
+        }
+    }
+
+
+    /**
+     * Sets a listener which receives the outcome of replayed requests.
+     *
+     * @param replayListener the replay listener
+     */
+    public synchronized void setReplayListener(LoaderTaskListener replayListener) {
+        this.replayListener = replayListener;
+    }
+
+
+    /**
+     * Registers with {@link NetworkUtils} and replays right away if a network is available.
+     */
+    public void start() {
+        NetworkUtils network = NetworkUtils.getInstance();
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+        network.addListener(this);
+        if (network.getNetworkType() != NetworkUtils.NetworkType.NONE) {
+            replay();
+        }
+    }
+
+
+    /**
+     * Unregisters from {@link NetworkUtils}. Requests replaying right now still complete.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            started = false;
+            cancelReplayTimer();
+        }
+        NetworkUtils.getInstance().removeListener(this);
+    }
+
+
+    @Override
+    public void onNetworkChanged(NetworkUtils.NetworkType ot, NetworkUtils.NetworkType nt) {
+        if (nt != NetworkUtils.NetworkType.NONE) {
+            replay();
+        }
+    }
+
+
+    /**
+     * Starts replaying the next batch on the main thread unless a batch is in flight. Requests
+     * to a host whose {@link LoaderCircuitBreaker} rejects requests wait until it lets requests
+     * through again, without using up an attempt.
+     */
+    public void replay() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            ThreadUtils.getMainHandler().post(replayRunnable);
+            return;
+        }
+        List<Entry> batch = new ArrayList<>(batchSize);
+        long deferMs;
+        synchronized (this) {
+            if (inFlight > 0) {
+                return;
+            }
+            cancelReplayTimer();
+            Iterator<Entry> it = pending.values().iterator();
+            while (it.hasNext() && batch.size() < batchSize) {
+                Entry entry = it.next();
+                if (getBreaker(entry).getRetryDelay() == 0) {
+                    batch.add(entry);
+                }
+            }
+            inFlight = batch.size();
+            batchFailed = false;
+            deferMs = batch.isEmpty() ? getDeferDelay() : 0;
+        }
+        if (deferMs > 0) {
+            scheduleReplay(deferMs);
+        }
+        if (!batch.isEmpty()) {
+            Log.i(TAG, "replay - " + batch.size() + " of " + size() + " queued requests");
+        }
+        for (Entry entry : batch) {
+            launch(entry.url, entry.params, new ReplayListener(entry));
+        }
+    }
+
+
+    /**
+     * Launches one queued request.
+     *
+     * @param url      the url
+     * @param params   the parameters as alternating names and values
+     * @param listener the listener which reports the outcome to the queue
+     */
+    void launch(String url, List<String> params, LoaderTaskListener listener) {
+        LoaderTaskUtils.Builder builder = new LoaderTaskUtils.Builder(AndBasx.getContext(),
+                listener, url);
+        for (int i = 0; i + 1 < params.size(); i += 2) {
+            builder.addParam(params.get(i), params.get(i + 1));
+        }
+        builder.launch();
+    }
+
+
+    boolean isNetworkAvailable() {
+        return SystemUtils.isNetworkAvailable();
+    }
+
+
+    /**
+     * Removes a request once it succeeded or used up its attempts. When the batch is done the
+     * next one starts right away, or after a backoff if a request of the batch failed, so a
+     * failure never stalls the queue until the next connectivity change. Without a network the
+     * queue waits for {@link #onNetworkChanged}.
+     */
+    private void onReplayed(Entry entry, boolean success) {
+        long delayMs = -1;
+        synchronized (this) {
+            // Lost connectivity or a rejecting breaker say nothing about the request itself.
+            boolean online = success || isNetworkAvailable();
+            long breakerDelay = success ? 0 : getBreaker(entry).getRetryDelay();
+            boolean deferred = !success && (breakerDelay > 0 || !online);
+            if (success || (!deferred && ++entry.attempts >= maxAttempts)) {
+                if (!success) {
+                    Log.w(TAG, "onReplayed - dropping #" + entry.id + " after " + entry.attempts
+                            + " attempts");
+                }
+                remove(entry);
+            } else if (pending.remove(entry.id) != null) {
+                // Requeued at the end, so requests behind a failing one get their turn.
+                pending.put(entry.id, entry);
+            }
+            if (!success) {
+                batchFailed = true;
+                replayDelay = Math.max(replayDelay, breakerDelay);
+            }
+            if (--inFlight == 0) {
+                if (!pending.isEmpty() && online) {
+                    delayMs = batchFailed ? Math.max(FAILED_BATCH_DELAY_MS, replayDelay) : 0;
+                }
+                replayDelay = 0;
+            }
+        }
+        if (delayMs == 0) {
+            replay();
+        } else if (delayMs > 0) {
+            scheduleReplay(delayMs);
+        }
+    }
+
+
+    private static LoaderCircuitBreaker getBreaker(Entry entry) {
+        return LoaderCircuitBreaker.forHost(LoaderTaskUtils.getHost(entry.url));
+    }
+
+
+    /**
+     * Returns the shortest time until a breaker which holds back a queued request lets requests
+     * through again, 0 if no request is held back.
+     */
+    private long getDeferDelay() {
+        long deferMs = 0;
+        for (Entry entry : pending.values()) {
+            long delay = getBreaker(entry).getRetryDelay();
+            if (delay > 0 && (deferMs == 0 || delay < deferMs)) {
+                deferMs = delay;
+            }
+        }
+        return deferMs;
+    }
+
+
+    private synchronized void scheduleReplay(long delayMs) {
+        cancelReplayTimer();
+        replayTimer = TimerUtils.runOnce(delayMs, new Callable<Void>() {
+            @Override
+            public Void call() {
+                replay();
+                return null;
+            }
+        });
+    }
+
+
+    private void cancelReplayTimer() {
+        if (replayTimer != null) {
+            replayTimer.cancel();
+            replayTimer = null;
+        }
+    }
+
+
+    /**
+     * Gets the number of queued requests.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+
+    /**
+     * Closes the journal.
+     */
+    public synchronized void close() {
+        close(out);
+        out = null;
+    }
+
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+    private final class ReplayListener implements LoaderTaskListener {
+
+        private final Entry entry;
+
+
+        ReplayListener(Entry entry) {
+            this.entry = entry;
+        }
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, String msg) {
+            onReplayed(entry, true);
+            LoaderTaskListener l = getReplayListener();
+            if (l != null) {
+                l.onLoaderTaskSuccess(action, msg);
+            }
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, String msg) {
+            onReplayed(entry, false);
+            LoaderTaskListener l = getReplayListener();
+            if (l != null) {
+                l.onLoaderTaskFailed(action, msg);
+            }
+        }
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, InputStream inputStream) {
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, InputStream inputStream) {
+        }
+    }
+
+
+    private synchronized LoaderTaskListener getReplayListener() {
+        return replayListener;
+    }
+
+
+    private static final class Entry {
+
+        private final long id;
+        private final String key;
+        private final String url;
+        private final List<String> params;
+        private int attempts;
+
+
+        Entry(long id, String key, String url, List<String> params) {
+            this.id = id;
+            this.key = key;
+            this.url = url;
+            this.params = params;
+        }
+    }
+
+}
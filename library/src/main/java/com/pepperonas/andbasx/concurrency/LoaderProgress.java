@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import android.app.ProgressDialog;
+import android.os.Handler;
+
+import com.pepperonas.andbasx.interfaces.LoaderProgressListener;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Throttled progress channel of a loader request.
+ * <p>
+ * {@link #update(long, long)} is cheap enough to be called per chunk: it only hands over to the
+ * main thread when the percentage changed or the time bucket elapsed, and at most one update is
+ * queued on the main looper at any time. Nothing is allocated per update.
+ */
+final class LoaderProgress implements Runnable {
+
+    private static final long INTERVAL_NS = 250L * 1000 * 1000;
+
+    private final LoaderTaskUtils.Action action;
+    private final ProgressDialog progressDialog;
+    private final LoaderProgressListener listener;
+    private final AtomicBoolean posted = new AtomicBoolean();
+
+    private volatile long bytes;
+    private volatile long total = -1;
+
+    private int lastPercent = -1;
+    private long lastEmitNs;
+
+
+    LoaderProgress(LoaderTaskUtils.Action action, ProgressDialog progressDialog,
+                   LoaderProgressListener listener) {
+        this.action = action;
+        this.progressDialog = progressDialog;
+        this.listener = listener;
+    }
+
+
+    static Handler getMainHandler() {
+        return ThreadUtils.getMainHandler();
+    }
+
+
+    boolean isObserved() {
+        return progressDialog != null || listener != null;
+    }
+
+
+    /**
+     * Reports the transferred bytes; total is -1 for chunked responses.
+     */
+    void update(long bytes, long total) {
+        if (!isObserved()) {
+            return;
+        }
+        int percent = total > 0 ? (int) (bytes * 100 / total) : -1;
+        long now = System.nanoTime();
+        if (percent == lastPercent && now - lastEmitNs < INTERVAL_NS) {
+            return;
+        }
+        lastPercent = percent;
+        lastEmitNs = now;
+        emit(bytes, total);
+    }
+
+
+    /**
+     * Reports the final state regardless of throttling.
+     */
+    void finish(long bytes, long total) {
+        if (isObserved()) {
+            emit(bytes, total);
+        }
+    }
+
+
+    private void emit(long bytes, long total) {
+        this.total = total;
+        this.bytes = bytes;
+        if (posted.compareAndSet(false, true)) {
+            getMainHandler().post(this);
+        }
+    }
+
+
+    @Override
+    public void run() {
+        posted.set(false);
+        long bytes = this.bytes;
+        long total = this.total;
+        if (progressDialog != null && total > 0) {
+            progressDialog.setProgress((int) (Math.min(bytes, total) * 100 / total));
+        }
+        if (listener != null) {
+            listener.onLoaderTaskProgress(action, bytes, total);
+        }
+    }
+
+}
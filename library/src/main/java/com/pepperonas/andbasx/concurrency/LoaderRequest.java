@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import android.os.AsyncTask;
+
+import com.pepperonas.andbasx.interfaces.LoaderTaskListener;
+
+/**
+ * The type Loader request.
+ * <p>
+ * Handle of a launched {@link LoaderTaskUtils} request, see
+ * {@link LoaderTaskUtils.Builder#launch()}.
+ */
+public class LoaderRequest {
+
+    private final LoaderTaskUtils task;
+    private final LoaderEngine engine;
+    private final String host;
+    private final Object tag;
+    private final LoaderTaskListener listener;
+
+    private volatile LoaderTaskUtils.Priority priority;
+    private volatile boolean cancelled;
+    private volatile String joinedKey;
+    private volatile LoaderRequest leader;
+
+
+    LoaderRequest(LoaderTaskUtils task, LoaderEngine engine, String host, Object tag,
+                  LoaderTaskUtils.Priority priority, LoaderTaskListener listener) {
+        this.task = task;
+        this.engine = engine;
+        this.host = host;
+        this.tag = tag;
+        this.priority = priority;
+        this.listener = listener;
+    }
+
+
+    /**
+     * Marks this request as follower of an identical in-flight request.
+     */
+    void joined(String key, LoaderRequest leader) {
+        this.joinedKey = key;
+        this.leader = leader;
+    }
+
+
+    /**
+     * Cancels the request. A queued request never starts, a running one is interrupted and does
+     * not call its listener anymore. If identical requests joined this one, the download
+     * continues for them and only this request's listener is detached.
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        if (joinedKey != null) {
+            LoaderCoalescer.leave(joinedKey, this);
+            task.reportCancelled();
+            if (leader.isCancelled()) {
+                // The leader only kept loading for its followers, maybe this was the last one.
+                leader.abandon();
+            }
+            return;
+        }
+        abandon();
+    }
+
+
+    /**
+     * Cancels the task and drops it from the queue, unless it has to keep loading detached
+     * for its followers.
+     */
+    private void abandon() {
+        if (task.cancelRequest()) {
+            engine.remove(this);
+        }
+    }
+
+
+    /**
+     * Is cancelled boolean.
+     *
+     * @return the boolean
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    /**
+     * Is finished boolean. Requests which joined another request report the state of the
+     * leading request.
+     *
+     * @return the boolean
+     */
+    public boolean isFinished() {
+        if (leader != null) {
+            return leader.isFinished();
+        }
+        return task.getStatus() == AsyncTask.Status.FINISHED && !task.isRetrying();
+    }
+
+
+    /**
+     * Sets priority. Takes effect as long as the request is queued.
+     *
+     * @param priority the priority
+     */
+    public void setPriority(LoaderTaskUtils.Priority priority) {
+        if (priority == null || this.priority == priority) {
+            return;
+        }
+        this.priority = priority;
+        if (joinedKey == null) {
+            engine.reprioritize();
+        }
+    }
+
+
+    /**
+     * Gets priority.
+     *
+     * @return the priority
+     */
+    public LoaderTaskUtils.Priority getPriority() {
+        return priority;
+    }
+
+
+    /**
+     * Gets tag.
+     *
+     * @return the tag
+     */
+    public Object getTag() {
+        return tag;
+    }
+
+
+    String getHost() {
+        return host;
+    }
+
+
+    LoaderTaskUtils getTask() {
+        return task;
+    }
+
+
+    LoaderEngine getEngine() {
+        return engine;
+    }
+
+
+    LoaderTaskListener getListener() {
+        return listener;
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Request body of a {@link LoaderTaskUtils.Action#RESOLVE} request, written straight to the
+ * connection. Neither form fields nor files are buffered as a whole, so memory stays flat
+ * regardless of the payload size.
+ */
+abstract class LoaderRequestBody {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+
+    abstract String getContentType();
+
+
+    /**
+     * Returns the body length in bytes, computed without materializing the body.
+     */
+    abstract long getContentLength() throws IOException;
+
+
+    abstract void writeTo(OutputStream out) throws IOException;
+
+
+    static LoaderRequestBody form(Map<String, Object> params) {
+        return new Form(params);
+    }
+
+
+    static LoaderRequestBody multipart(Map<String, Object> params, List<FilePart> files) {
+        return new Multipart(params, files);
+    }
+
+
+    /**
+     * The type File part.
+     */
+    static final class FilePart {
+
+        final String name;
+        final File file;
+        final String mimeType;
+
+
+        FilePart(String name, File file, String mimeType) {
+            this.name = name;
+            this.file = file;
+            this.mimeType = mimeType != null ? mimeType : "application/octet-stream";
+        }
+    }
+
+
+    private static final class Form extends LoaderRequestBody {
+
+        private final Map<String, Object> params;
+
+
+        Form(Map<String, Object> params) {
+            this.params = params;
+        }
+
+
+        @Override
+        String getContentType() {
+            return "application/x-www-form-urlencoded";
+        }
+
+
+        @Override
+        long getContentLength() throws IOException {
+            CountingOutputStream counter = new CountingOutputStream();
+            writeTo(counter);
+            return counter.count;
+        }
+
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            boolean first = true;
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                if (!first) {
+                    out.write('&');
+                }
+                first = false;
+                out.write(URLEncoder.encode(param.getKey(), "UTF-8").getBytes("US-ASCII"));
+                out.write('=');
+                out.write(URLEncoder.encode(String.valueOf(param.getValue()), "UTF-8")
+                        .getBytes("US-ASCII"));
+            }
+        }
+    }
+
+
+    private static final class Multipart extends LoaderRequestBody {
+
+        private final Map<String, Object> params;
+        private final List<FilePart> files;
+        private final String boundary;
+
+
+        Multipart(Map<String, Object> params, List<FilePart> files) {
+            this.params = params;
+            this.files = files;
+            this.boundary = "andbasx" + Long.toHexString(new Random().nextLong())
+                    + Long.toHexString(System.nanoTime());
+        }
+
+
+        @Override
+        String getContentType() {
+            return "multipart/form-data; boundary=" + boundary;
+        }
+
+
+        @Override
+        long getContentLength() throws IOException {
+            CountingOutputStream counter = new CountingOutputStream();
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                writeField(counter, param.getKey(), String.valueOf(param.getValue()));
+            }
+            long length = counter.count;
+            for (FilePart part : files) {
+                counter.count = 0;
+                writeFileHeader(counter, part);
+                length += counter.count + part.file.length() + CRLF.length;
+            }
+            counter.count = 0;
+            writeClosing(counter);
+            return length + counter.count;
+        }
+
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                writeField(out, param.getKey(), String.valueOf(param.getValue()));
+            }
+            byte[] data = new byte[16 * 1024];
+            for (FilePart part : files) {
+                writeFileHeader(out, part);
+                InputStream in = new FileInputStream(part.file);
+                try {
+                    int count;
+                    while ((count = in.read(data)) != -1) {
+                        out.write(data, 0, count);
+                    }
+                } finally {
+                    in.close();
+                }
+                out.write(CRLF);
+            }
+            writeClosing(out);
+        }
+
+
+        private void writeField(OutputStream out, String name, String value) throws IOException {
+            out.write(("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + escape(name) + "\"\r\n"
+                    + "Content-Type: text/plain; charset=UTF-8\r\n\r\n").getBytes("UTF-8"));
+            out.write(value.getBytes("UTF-8"));
+            out.write(CRLF);
+        }
+
+
+        private void writeFileHeader(OutputStream out, FilePart part) throws IOException {
+            out.write(("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + escape(part.name)
+                    + "\"; filename=\"" + escape(part.file.getName()) + "\"\r\n"
+                    + "Content-Type: " + part.mimeType + "\r\n\r\n").getBytes("UTF-8"));
+        }
+
+
+        private void writeClosing(OutputStream out) throws IOException {
+            out.write(("--" + boundary + "--\r\n").getBytes("UTF-8"));
+        }
+
+
+        private static String escape(String s) {
+            return s.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+        }
+    }
+
+
+    /**
+     * Reports the bytes written to the connection through the throttled progress channel.
+     */
+    static final class ProgressOutputStream extends FilterOutputStream {
+
+        private final LoaderProgress progress;
+        private final long total;
+        private long written;
+
+
+        ProgressOutputStream(OutputStream out, LoaderProgress progress, long total) {
+            super(out);
+            this.progress = progress;
+            this.total = total;
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            progress.update(++written, total);
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+            progress.update(written, total);
+        }
+
+
+        long getWritten() {
+            return written;
+        }
+    }
+
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
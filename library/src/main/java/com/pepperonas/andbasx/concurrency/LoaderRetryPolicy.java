@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The type Loader retry policy.
+ * <p>
+ * Exponential backoff with full jitter: the n-th retry waits a random time between 0 and
+ * min(maxDelay, baseDelay * 2^n), so clients which failed together do not retry together.
+ * {@link LoaderTaskUtils.Action#RESOLVE} requests are only retried when marked idempotent.
+ */
+public class LoaderRetryPolicy {
+
+    /**
+     * Policy without retries.
+     */
+    public static final LoaderRetryPolicy NONE = new LoaderRetryPolicy(0, 0, 0);
+
+    private static final Random RANDOM = new Random();
+
+    private static final AtomicLong sRetries = new AtomicLong();
+    private static final AtomicLong sExhausted = new AtomicLong();
+
+    private final int maxRetries;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+
+
+    /**
+     * Instantiates a new Loader retry policy.
+     *
+     * @param maxRetries  the max retries
+     * @param baseDelayMs the delay of the first retry in ms
+     * @param maxDelayMs  the upper bound of a single delay in ms
+     */
+    public LoaderRetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayMs = Math.max(0, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+    }
+
+
+    /**
+     * Gets max retries.
+     *
+     * @return the max retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+
+    /**
+     * Gets the jittered delay before the given retry.
+     *
+     * @param retry the retry, starting at 0
+     * @return the delay in ms
+     */
+    public long getDelay(int retry) {
+        long cap = baseDelayMs << Math.min(retry, 30);
+        if (cap <= 0 || cap > maxDelayMs) {
+            cap = maxDelayMs;
+        }
+        synchronized (RANDOM) {
+            return (long) (RANDOM.nextDouble() * cap);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return maxRetries + "x" + baseDelayMs + "-" + maxDelayMs + "ms";
+    }
+
+
+    /**
+     * Gets the number of retries performed by all requests.
+     *
+     * @return the retry count
+     */
+    public static long getRetryCount() {
+        return sRetries.get();
+    }
+
+
+    /**
+     * Gets the number of requests which failed after using up their retries.
+     *
+     * @return the exhausted count
+     */
+    public static long getExhaustedCount() {
+        return sExhausted.get();
+    }
+
+
+    static void onRetry() {
+        sRetries.incrementAndGet();
+    }
+
+
+    static void onExhausted() {
+        sExhausted.incrementAndGet();
+    }
+
+}
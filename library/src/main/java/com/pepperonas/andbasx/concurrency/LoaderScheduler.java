@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.system.NetworkUtils;
+import com.pepperonas.andbasx.system.NetworkUtils.NetworkType;
+import com.pepperonas.jbasx.log.Log;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The type Loader scheduler.
+ * <p>
+ * Adapts a {@link LoaderEngine} to the {@link NetworkType} reported by {@link NetworkUtils}:
+ * every type maps to a {@link Profile} of worker count, prefetch depth and a {@link Quality}
+ * hint for callers which choose between asset sizes. Without connectivity, requests of
+ * {@link LoaderTaskUtils.Priority#NORMAL} and below stay queued until a network returns.
+ */
+public class LoaderScheduler implements NetworkUtils.NetworkListener {
+
+    private static final String TAG = "LoaderScheduler";
+
+    private final LoaderEngine engine;
+    private final Map<NetworkType, Profile> profiles = new EnumMap<>(NetworkType.class);
+
+    private volatile NetworkType networkType = NetworkType.NONE;
+    private volatile Quality quality = Quality.LOW;
+    private boolean started;
+    private int savedMaxWorkers;
+    private int savedPrefetchDepth;
+
+
+    /**
+     * The enum Quality.
+     */
+    public enum Quality {
+        /**
+         * Full resolution assets.
+         */
+        HIGH,
+        /**
+         * Reduced assets.
+         */
+        MEDIUM,
+        /**
+         * Smallest available assets.
+         */
+        LOW
+    }
+
+
+    /**
+     * Instantiates a new Loader scheduler with the default profiles.
+     *
+     * @param engine the engine
+     */
+    public LoaderScheduler(LoaderEngine engine) {
+        this.engine = engine;
+        profiles.put(NetworkType.WIFI_FAST, new Profile(6, 4, Quality.HIGH));
+        profiles.put(NetworkType.MOBILE_FAST, new Profile(4, 2, Quality.HIGH));
+        profiles.put(NetworkType.MOBILE_MIDDLE, new Profile(3, 1, Quality.MEDIUM));
+        profiles.put(NetworkType.MOBILE_SLOW, new Profile(2, 0, Quality.LOW));
+        profiles.put(NetworkType.NONE, new Profile(1, 0, Quality.LOW));
+    }
+
+
+    /**
+     * Replaces the profile of a network type. Applied immediately if the scheduler is started
+     * and the type is active.
+     *
+     * @param type    the network type
+     * @param profile the profile
+     * @return the loader scheduler
+     */
+    public LoaderScheduler setProfile(NetworkType type, Profile profile) {
+        synchronized (this) {
+            profiles.put(type, profile);
+        }
+        if (type == networkType) {
+            apply(type);
+        }
+        return this;
+    }
+
+
+    /**
+     * Registers with {@link NetworkUtils} and applies the profile of the current network.
+     */
+    public void start() {
+        NetworkUtils network = NetworkUtils.getInstance();
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+            savedMaxWorkers = engine.getMaxWorkers();
+            savedPrefetchDepth = engine.getPrefetchDepth();
+        }
+        network.addListener(this);
+        apply(network.getNetworkType());
+    }
+
+
+    /**
+     * Unregisters from {@link NetworkUtils}, restores the worker count and prefetch depth the
+     * engine had before {@link #start()} and releases requests held back while offline.
+     */
+    public void stop() {
+        int maxWorkers;
+        int prefetchDepth;
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            started = false;
+            maxWorkers = savedMaxWorkers;
+            prefetchDepth = savedPrefetchDepth;
+        }
+        NetworkUtils.getInstance().removeListener(this);
+        engine.setMaxWorkers(maxWorkers);
+        engine.setPrefetchDepth(prefetchDepth);
+        engine.resume();
+    }
+
+
+    @Override
+    public void onNetworkChanged(NetworkType ot, NetworkType nt) {
+        Log.i(TAG, "onNetworkChanged " + ot + " -> " + nt);
+        apply(nt);
+    }
+
+
+    private void apply(NetworkType type) {
+        Profile profile;
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            profile = profiles.get(type);
+        }
+        networkType = type;
+        quality = profile.quality;
+
+        engine.setMaxWorkers(profile.maxWorkers);
+        engine.setPrefetchDepth(profile.prefetchDepth);
+        if (type == NetworkType.NONE) {
+            engine.pause(LoaderTaskUtils.Priority.NORMAL);
+        } else {
+            engine.resume();
+        }
+    }
+
+
+    /**
+     * Gets the network type of the active profile.
+     *
+     * @return the network type
+     */
+    public NetworkType getNetworkType() {
+        return networkType;
+    }
+
+
+    /**
+     * Gets the quality hint of the active profile, e.g. to pick image sizes.
+     *
+     * @return the quality
+     */
+    public Quality getQuality() {
+        return quality;
+    }
+
+
+    /**
+     * The type Profile.
+     */
+    public static final class Profile {
+
+        private final int maxWorkers;
+        private final int prefetchDepth;
+        private final Quality quality;
+
+
+        /**
+         * Instantiates a new Profile.
+         *
+         * @param maxWorkers    the max concurrently running requests
+         * @param prefetchDepth the max concurrently running prefetches
+         * @param quality       the quality hint
+         */
+        public Profile(int maxWorkers, int prefetchDepth, Quality quality) {
+            this.maxWorkers = Math.max(1, maxWorkers);
+            this.prefetchDepth = Math.max(0, prefetchDepth);
+            this.quality = quality;
+        }
+
+
+        /**
+         * Gets max workers.
+         *
+         * @return the max workers
+         */
+        public int getMaxWorkers() {
+            return maxWorkers;
+        }
+
+
+        /**
+         * Gets prefetch depth.
+         *
+         * @return the prefetch depth
+         */
+        public int getPrefetchDepth() {
+            return prefetchDepth;
+        }
+
+
+        /**
+         * Gets quality.
+         *
+         * @return the quality
+         */
+        public Quality getQuality() {
+            return quality;
+        }
+    }
+
+}
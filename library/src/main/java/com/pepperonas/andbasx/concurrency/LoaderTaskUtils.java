@@ -19,30 +19,51 @@ package com.pepperonas.andbasx.concurrency;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
 import com.pepperonas.andbasx.AndBasx;
+import com.pepperonas.andbasx.interfaces.LoaderMetricsListener;
+import com.pepperonas.andbasx.interfaces.LoaderProgressListener;
+import com.pepperonas.andbasx.interfaces.LoaderStreamConsumer;
 import com.pepperonas.andbasx.interfaces.LoaderTaskListener;
-import com.pepperonas.jbasx.io.IoUtils;
+import com.pepperonas.andbasx.system.BandwidthEstimator;
+import com.pepperonas.andbasx.system.SystemUtils;
 import com.pepperonas.jbasx.log.Log;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 /**
@@ -52,6 +73,11 @@ public class LoaderTaskUtils extends AsyncTask<String, String, String> {
 
     private static final String TAG = "LoaderTaskUtils";
 
+    private static final int MIN_BUFFER = 16 * 1024;
+    private static final int MAX_BUFFER = 256 * 1024;
+
+    private static final String SUFFIX_TMP = ".tmp";
+
 
     /**
      * The enum Action.
@@ -82,7 +108,48 @@ public class LoaderTaskUtils extends AsyncTask<String, String, String> {
     }
 
 
+    /**
+     * The enum Priority. Queued requests start in this order.
+     */
+    public enum Priority {
+        /**
+         * Immediate priority, e.g. content the user explicitly asked for.
+         */
+        IMMEDIATE,
+        /**
+         * Visible priority, content currently on screen.
+         */
+        VISIBLE,
+        /**
+         * Normal priority.
+         */
+        NORMAL,
+        /**
+         * Prefetch priority, never takes the last free worker.
+         */
+        PREFETCH
+    }
+
+
     private Builder builder;
+    private final LoaderProgress progress;
+    private final LoaderRequest request;
+    private String coalesceKey;
+    private List<LoaderRequest> followers;
+    private volatile boolean detached;
+    private int responseCode = -1;
+    private boolean committed;
+    private LoaderTransferStats.CountingInputStream wire;
+    private long bodyStart = -1;
+    private final LoaderMetrics metrics;
+    private final long launchedAt = SystemClock.elapsedRealtime();
+    private final AtomicBoolean reported = new AtomicBoolean();
+    private LoaderCircuitBreaker breaker;
+    private LoaderRetryPolicy retryPolicy;
+    private int retry;
+    private boolean reloaded;
+    private TimerUtils.Task retryTimer;
+    private volatile boolean retrying;
 
 
     /**
@@ -92,16 +159,105 @@ public class LoaderTaskUtils extends AsyncTask<String, String, String> {
      */
     public LoaderTaskUtils(Builder builder) {
         this.builder = builder;
-        if (builder.params == null) {
-            this.execute(this.builder.url);
-        } else {
-            String[] args = new String[this.builder.params.size() + 1];
-            //            args[0] = builder.url;
-            int i = 0;
-            for (String s : this.builder.params) {
-                args[i++] = s;
+        this.progress = new LoaderProgress(builder.action,
+                builder.showProgress ? builder.progressDialog : null, builder.progressListener);
+
+        LoaderEngine engine = builder.engine != null ? builder.engine : LoaderEngine.getDefault();
+        this.request = new LoaderRequest(this, engine, getHost(builder.url), builder.tag,
+                builder.priority, builder.loaderTaskListener);
+        this.metrics = new LoaderMetrics(builder.action, builder.url, request.getHost(),
+                builder.priority);
+
+        if (builder.isCoalescable()) {
+            String key = builder.getCoalesceKey(engine);
+            LoaderRequest leader = LoaderCoalescer.join(key, request);
+            if (leader != null) {
+                Log.d(TAG, "LoaderTaskUtils joined in-flight request " + builder.url);
+                request.joined(key, leader);
+                return;
+            }
+            coalesceKey = key;
+        }
+
+        Executor executor = engine.forRequest(request);
+        try {
+            if (builder.params == null) {
+                this.executeOnExecutor(executor, this.builder.url);
+            } else {
+                String[] args = new String[this.builder.params.size() + 1];
+                //            args[0] = builder.url;
+                int i = 0;
+                for (String s : this.builder.params) {
+                    args[i++] = s;
+                }
+                this.executeOnExecutor(executor, args);
             }
-            this.execute(args);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "LoaderTaskUtils " + e.getMessage());
+            if (builder.progressDialog != null) {
+                builder.progressDialog.dismiss();
+            }
+            deliverFailure("Too many pending requests.");
+            report(LoaderMetrics.Outcome.REJECTED);
+        }
+    }
+
+
+    /**
+     * Gets the handle of this request.
+     *
+     * @return the request
+     */
+    public LoaderRequest getRequest() {
+        return request;
+    }
+
+
+    /**
+     * Cancels the task, or only detaches this request's listener if identical requests joined it.
+     * A detached task stays queued or running and completes the request for its followers.
+     *
+     * @return true if the task was cancelled, false if it was detached
+     */
+    boolean cancelRequest() {
+        synchronized (this) {
+            if (coalesceKey != null && followers == null) {
+                if (!LoaderCoalescer.removeIfAlone(coalesceKey)) {
+                    if (!detached) {
+                        detached = true;
+                        dismissDialog();
+                    }
+                    return false;
+                }
+                followers = Collections.emptyList();
+            }
+        }
+        cancel(true);
+        if (takeRetry()) {
+            // Waiting for a retry, no attempt will complete the request.
+            finish();
+        }
+        return true;
+    }
+
+
+    private void dismissDialog() {
+        if (builder.progressDialog != null) {
+            LoaderProgress.getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    builder.progressDialog.dismiss();
+                }
+            });
+        }
+    }
+
+
+    static String getHost(String url) {
+        try {
+            return new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            return "";
         }
     }
 
@@ -121,140 +277,961 @@ public class LoaderTaskUtils extends AsyncTask<String, String, String> {
 
     @Override
     protected String doInBackground(String... args) {
+        breaker = LoaderCircuitBreaker.forHost(request.getHost());
+        retryPolicy = isIdempotent() ? builder.retryPolicy : LoaderRetryPolicy.NONE;
+        metrics.queueWaitMs = SystemClock.elapsedRealtime() - launchedAt;
+        attempt(args);
+        return "";
+    }
+
+
+    /**
+     * Runs one attempt of the request. A transient failure with retries left schedules the next
+     * attempt instead of sleeping, so the backoff holds neither a worker nor a slot of the host.
+     */
+    private void attempt(String... args) {
+        boolean retryScheduled = false;
+        try {
+            if (!breaker.allowRequest()) {
+                Log.w(TAG, "attempt - circuit open for " + breaker.getHost());
+                deliverFailure("Host temporarily unavailable.");
+                return;
+            }
+            responseCode = -1;
+            metrics.startAttempt();
+            try {
+                loadVerified(args);
+                metrics.outcome = LoaderMetrics.Outcome.SUCCESS;
+                breaker.onSuccess();
+            } catch (IOException e) {
+                if (isCancelled()) {
+                    breaker.onAbandoned();
+                    return;
+                }
+                boolean transientFailure = isTransient(e);
+                // Without a network the host was never reached, this tells nothing about it.
+                boolean offline = transientFailure && responseCode == -1
+                        && !isNetworkAvailable();
+                if (transientFailure && !offline) {
+                    breaker.onFailure();
+                } else if (responseCode != -1) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onAbandoned();
+                }
+                if (!transientFailure || offline || committed
+                        || retry >= retryPolicy.getMaxRetries()) {
+                    if (transientFailure && retry > 0) {
+                        LoaderRetryPolicy.onExhausted();
+                    }
+                    if (transientFailure && !committed && enqueueOffline()) {
+                        deliverFailure("Request queued until the network returns.");
+                        return;
+                    }
+                    deliverFailure("An error occurred.");
+                    e.printStackTrace();
+                    return;
+                }
+                long delay = retryPolicy.getDelay(retry++);
+                LoaderRetryPolicy.onRetry();
+                Log.w(TAG, "attempt - " + e.getMessage() + ", retry " + retry + " in "
+                        + delay + " ms");
+                retryScheduled = scheduleRetry(delay, args);
+            }
+        } finally {
+            if (!retryScheduled) {
+                finish();
+            }
+        }
+    }
+
+
+    /**
+     * Loads, and downloads once more from scratch if the stored file does not match its
+     * checksum. A mismatch mostly means the bytes were corrupted on the way, the partial file
+     * is discarded with it, so the second download neither resumes nor counts against the
+     * retry policy or the circuit breaker. A second mismatch fails the request.
+     */
+    private void loadVerified(String... args) throws IOException {
+        try {
+            load(args);
+        } catch (LoaderChecksum.ChecksumException e) {
+            if (reloaded || isCancelled()) {
+                throw e;
+            }
+            reloaded = true;
+            Log.w(TAG, "loadVerified - " + e.getMessage() + ", downloading again.");
+            responseCode = -1;
+            metrics.startAttempt();
+            load(args);
+        }
+    }
+
+
+    /**
+     * Starts the next attempt after the delay as a new job of this request on the engine.
+     *
+     * @return false if the request was cancelled meanwhile
+     */
+    private synchronized boolean scheduleRetry(long delayMs, final String... args) {
+        if (isCancelled()) {
+            return false;
+        }
+        retrying = true;
+        retryTimer = TimerUtils.runOnce(delayMs, new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    request.getEngine().forRequest(request).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (takeRetry()) {
+                                attempt(args);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "scheduleRetry " + e.getMessage());
+                    if (takeRetry()) {
+                        metrics.outcome = LoaderMetrics.Outcome.REJECTED;
+                        deliverFailure("Too many pending requests.");
+                        finish();
+                    }
+                }
+                return null;
+            }
+        });
+        return true;
+    }
+
+
+    /**
+     * Takes over a scheduled retry, either to run it or to drop it on cancel.
+     *
+     * @return false if the retry was taken over already
+     */
+    private synchronized boolean takeRetry() {
+        if (retryTimer == null) {
+            return false;
+        }
+        retryTimer.cancel();
+        retryTimer = null;
+        return true;
+    }
+
+
+    /**
+     * Returns whether the request still waits for or runs a retry.
+     */
+    boolean isRetrying() {
+        return retrying;
+    }
+
+
+    /**
+     * Completes the request after its last attempt.
+     */
+    private void finish() {
+        if (followers == null && coalesceKey != null) {
+            // Nothing was delivered, e.g. after a runtime exception.
+            for (LoaderTaskListener follower : takeFollowers()) {
+                follower.onLoaderTaskFailed(builder.action, "An error occurred.");
+            }
+        }
+        LoaderMetrics.Outcome delivered = metrics.outcome;
+        report(null);
+        List<LoaderRequest> joined;
+        synchronized (this) {
+            joined = followers;
+        }
+        if (joined != null) {
+            for (LoaderRequest follower : joined) {
+                follower.getTask().reportJoined(delivered, responseCode);
+            }
+        }
+        if (retrying) {
+            // The task itself finished with the first attempt.
+            retrying = false;
+            dismissDialog();
+        }
+    }
+
+
+    /**
+     * Reports the metrics of this request. Every way a request ends leads here, only the first
+     * call reports.
+     *
+     * @param outcome the outcome, null to keep the one of the last attempt unless cancelled
+     */
+    private void report(LoaderMetrics.Outcome outcome) {
+        if (!reported.compareAndSet(false, true)) {
+            return;
+        }
+        if (outcome != null) {
+            metrics.outcome = outcome;
+        } else if (isCancelled() || detached) {
+            metrics.outcome = LoaderMetrics.Outcome.CANCELLED;
+        }
+        metrics.responseCode = responseCode;
+        metrics.totalMs = SystemClock.elapsedRealtime() - launchedAt;
+        LoaderMetricsListener listener = LoaderMetrics.getListener();
+        if (listener != null) {
+            listener.onLoaderMetrics(metrics);
+        }
+    }
+
+
+    /**
+     * Reports a request which joined an identical request once that one delivered.
+     */
+    private void reportJoined(LoaderMetrics.Outcome outcome, int responseCode) {
+        this.responseCode = responseCode;
+        metrics.coalesced = true;
+        report(outcome);
+    }
+
+
+    /**
+     * Reports a request which was cancelled before any attempt ran.
+     */
+    void reportCancelled() {
+        report(LoaderMetrics.Outcome.CANCELLED);
+    }
+
+
+    /**
+     * Hands a {@link Action#RESOLVE} request which never reached the server to the offline
+     * queue of the builder.
+     *
+     * @return false if there is no queue for the request or it could not be written
+     */
+    private boolean enqueueOffline() {
+        if (builder.offlineQueue == null || builder.action != Action.RESOLVE || responseCode != -1
+                || (builder.files != null && !builder.files.isEmpty())) {
+            return false;
+        }
+        return builder.offlineQueue.enqueue(builder.offlineKey, builder.url, builder.params);
+    }
+
+
+    /**
+     * Feeds the throughput of the last response body to the {@link BandwidthEstimator}. Only the
+     * time spent reading from the connection counts, a listener which consumes the stream would
+     * otherwise add its own work to the transfer.
+     */
+    private void sampleBandwidth() {
+        if (bodyStart != -1) {
+            long transfer = wire != null ? wire.getReadMs() : 0;
+            metrics.transferMs = transfer;
+            metrics.bytesReceived = wire != null ? wire.getCount() : 0;
+            BandwidthEstimator.getInstance().addTransfer(metrics.bytesReceived, transfer);
+            bodyStart = -1;
+        }
+    }
+
+
+    private void connect(HttpURLConnection conn) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        conn.connect();
+        metrics.connectMs = SystemClock.elapsedRealtime() - start;
+    }
+
+
+    /**
+     * Waits for the response headers and starts the transfer phase.
+     */
+    private void awaitResponse(HttpURLConnection conn) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        responseCode = conn.getResponseCode();
+        bodyStart = SystemClock.elapsedRealtime();
+        metrics.ttfbMs = bodyStart - start;
+        BandwidthEstimator.getInstance().addRtt(metrics.ttfbMs);
+        wire = null;
+    }
+
+
+    boolean isNetworkAvailable() {
+        return SystemUtils.isNetworkAvailable();
+    }
+
+
+    private boolean isIdempotent() {
+        return builder.action != Action.RESOLVE || builder.idempotent;
+    }
+
+
+    /**
+     * Returns true for failures worth a retry: connection errors, timeouts, 5xx, 408 and 429.
+     * Client side failures ({@link LoaderLocalException}) never are.
+     */
+    private boolean isTransient(IOException e) {
+        if (e instanceof LoaderLocalException || e instanceof MalformedURLException
+                || e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false;
+        }
+        if (responseCode >= 400 && responseCode < 500) {
+            return responseCode == 408 || responseCode == 429;
+        }
+        return true;
+    }
+
+
+    private void load(String... args) throws IOException {
         URL url;
         OutputStream output = null;
         InputStream is = null;
+        HttpURLConnection conn = null;
+        LoaderConnectionPool pool = builder.connectionPool != null
+                ? builder.connectionPool : LoaderConnectionPool.getDefault();
 
         try {
-            int count;
-
             url = new URL(builder.url);
 
-            Log.d(TAG, "doInBackground URL:  " + "");
+            Log.d(TAG, "doInBackground URL:  " + builder.url);
 
-            if (builder.action == Action.READ || builder.action == Action.STORE_FILE) {
+            if (builder.action == Action.STORE_FILE) {
 
-                URLConnection urlConnection = url.openConnection();
-                urlConnection.connect();
-                urlConnection.setReadTimeout(builder.readTimeout);
-                urlConnection.setConnectTimeout(builder.connectionTimeout);
+                storeFile(url, pool);
+                deliverSuccess("File successfully stored.");
+                return;
 
-                is = new BufferedInputStream(url.openStream(), 8192);
+            } else if (builder.action == Action.READ) {
 
-                if (builder.action == Action.STORE_FILE) {
+                LoaderCache cache = builder.cache;
+                LoaderCache.Entry cached = cache != null ? cache.get(builder.url) : null;
 
-                    int length = urlConnection.getContentLength();
-                    output = new FileOutputStream(
-                            new File(builder.dirPath, builder.fileName + builder.extension));
-                    byte data[] = new byte[1024];
-
-                    long total = 0;
+                conn = pool.open(url, builder.connectionTimeout, builder.readTimeout);
+                acceptEncoding(conn);
+                if (cached != null) {
+                    cache.addConditionalHeaders(conn, cached);
+                }
+                connect(conn);
+                awaitResponse(conn);
+                long length = isEncoded(conn) ? -1 : getContentLength(conn);
+                String charset = getCharset(conn);
+
+                if (cached != null && conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    pool.release(conn, conn.getInputStream());
+                    conn = null;
+                    is = cache.openNotModified(cached);
+                } else if (cache != null && conn.getResponseCode() == HttpURLConnection.HTTP_OK
+                        && cache.isCacheable(conn)) {
+                    // Copied into the cache while it is read, so limits and cancellation apply.
+                    is = cache.store(builder.url, conn, openBody(conn, true));
+                } else {
+                    is = openBody(conn, true);
+                }
 
-                    while ((count = is.read(data)) != -1) {
-                        total += count;
-                        publishProgress("" + (int) ((total * 100) / length));
-                        output.write(data, 0, count);
+                if (builder.streamConsumer != null) {
+                    String text = consume(is, length, charset);
+                    if (text != null && isListening()) {
+                        builder.loaderTaskListener.onLoaderTaskSuccess(builder.action, text);
                     }
+                    return;
+                }
+
+                if (!takeFollowers().isEmpty()) {
+                    deliverShared(readBytes(is, length), charset);
+                    return;
+                }
 
+                committed = true;
+                if (isListening()) {
+                    long start = SystemClock.elapsedRealtime();
                     builder.loaderTaskListener
-                            .onLoaderTaskSuccess(builder.action, "File successfully stored.");
-                    return "";
+                            .onLoaderTaskSuccess(builder.action, is);
+                    metrics.dispatchMs += SystemClock.elapsedRealtime() - start;
+                }
+                if (builder.deliverString == null || builder.deliverString) {
+                    String text = readString(is, length, charset);
+                    if (isListening()) {
+                        long start = SystemClock.elapsedRealtime();
+                        builder.loaderTaskListener.onLoaderTaskSuccess(builder.action, text);
+                        metrics.dispatchMs += SystemClock.elapsedRealtime() - start;
+                    }
+                }
+                return;
+
+            } else if (builder.action == Action.RESOLVE) {
+                Log.i(TAG, "doInBackground " + url);
+                Log.d(TAG, "doInBackground  ", args);
+
+                int i = 0;
+                String key = "";
+                Map<String, Object> params = new LinkedHashMap<>();
+                for (String param : args) {
+                    if (i % 2 == 0) {
+                        key = param;
+                    } else if (i % 2 == 1) {
+                        params.put(key, param);
+                    }
+                    i++;
+                }
+
+                Log.logHashMap(TAG, 0, params);
+
+                LoaderRequestBody body = builder.files == null || builder.files.isEmpty()
+                        ? LoaderRequestBody.form(params)
+                        : LoaderRequestBody.multipart(params, builder.files);
+                long length = builder.chunkedUpload ? -1 : body.getContentLength();
+
+                conn = pool.open(url, builder.connectionTimeout, builder.readTimeout);
+                acceptEncoding(conn);
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Content-Type", body.getContentType());
+                if (length >= 0 && length <= Integer.MAX_VALUE) {
+                    conn.setFixedLengthStreamingMode((int) length);
+                } else {
+                    conn.setChunkedStreamingMode(0);
+                }
+                conn.setDoOutput(true);
+                connect(conn);
+                LoaderRequestBody.ProgressOutputStream upload =
+                        new LoaderRequestBody.ProgressOutputStream(new BufferedOutputStream(
+                                conn.getOutputStream(), MIN_BUFFER), progress, length);
+                output = upload;
+                body.writeTo(upload);
+                output.close();
+                output = null;
+                progress.finish(upload.getWritten(), length);
+                metrics.bytesSent = upload.getWritten();
+
+                awaitResponse(conn);
+                is = openBody(conn, true);
+                deliverSuccess(readText(is, isEncoded(conn) ? -1 : getContentLength(conn),
+                        getCharset(conn), this));
+
+                return;
+            }
+
+        } catch (IOException e) {
+            if (conn != null && is == null) {
+                is = conn.getErrorStream();
+            }
+            throw e;
+        } finally {
+            try {
+                if (output != null) {
+                    output.flush();
+                    output.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            pool.release(conn, is, !isCancelled());
+            sampleBandwidth();
+        }
+    }
+
+
+    private void storeFile(URL url, LoaderConnectionPool pool) throws IOException {
+        File target = new File(builder.dirPath, builder.fileName + builder.extension);
+
+        // The request's own worker and its helpers stay within the per-host limit.
+        int segments = Math.min(builder.segments, request.getEngine().getMaxPerHost());
+        if (segments > 1) {
+            SegmentedDownload segmented = new SegmentedDownload(url, target, pool,
+                    builder.connectionTimeout, builder.readTimeout, builder.segmentRetries,
+                    builder.checksum);
+            if (segmented.probe(builder.segmentMinSize)) {
+                try {
+                    storeSegmented(segmented, segments);
+                    return;
+                } catch (SegmentedDownload.RangeNotHonouredException e) {
+                    Log.w(TAG, "storeFile - " + e.getMessage() + ", loading as one.");
+                }
+            } else {
+                Log.d(TAG, "storeFile - no range support, validator or below segment threshold, "
+                        + "loading as one.");
+            }
+        }
+
+        PartialDownload partial = builder.resumable ? new PartialDownload(target) : null;
+        long offset = partial != null ? partial.getResumeOffset() : 0;
+
+        HttpURLConnection conn = null;
+        InputStream is = null;
+        FileOutputStream output = null;
+        File temp = null;
+        try {
+            conn = pool.open(url, builder.connectionTimeout, builder.readTimeout);
+            // Otherwise the platform adds gzip and hides Content-Length, the length check and
+            // byte ranges need the stored bytes as sent.
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                partial.addRangeHeaders(conn, offset);
+            }
+            connect(conn);
+            awaitResponse(conn);
+            if (offset > 0 && offset == partial.getTotalLength()
+                    && conn.getResponseCode() == 416) {
+                // Range not satisfiable: the previous run stopped right before the rename.
+                if (builder.checksum != null) {
+                    verify(builder.checksum, partial.getPartFile(), partial);
+                }
+                partial.complete();
+                return;
+            }
+
+            long length;
+            if (offset > 0 && conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                    && partial.matches(conn, offset)) {
+                Log.i(TAG, "storeFile - resuming " + target.getName() + " at " + offset);
+                length = partial.getTotalLength();
+            } else {
+                if (conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                    // The server answered a range for a representation we do not hold.
+                    if (partial != null) {
+                        partial.discard();
+                    }
+                    throw new IOException("Unexpected partial content for " + url);
+                }
+                offset = 0;
+                length = getContentLength(conn);
+                if (partial != null) {
+                    partial.restart(conn);
+                }
+            }
+
+            LoaderChecksum.Digest digest = null;
+            if (builder.checksum != null) {
+                digest = builder.checksum.newDigest();
+                if (offset > 0) {
+                    digest.update(partial.getPartFile(), offset);
+                }
+            }
+
+            is = openBody(conn, false);
+            try {
+                if (partial == null) {
+                    // Written aside and moved into place once complete and verified.
+                    temp = File.createTempFile(target.getName(), SUFFIX_TMP,
+                            target.getParentFile());
+                }
+                output = new FileOutputStream(partial != null ? partial.getPartFile() : temp,
+                        offset > 0);
+            } catch (IOException e) {
+                throw new LoaderLocalException("Cannot write to " + target.getParent(), e);
+            }
+            long total = copy(is, output.getChannel(), offset, length, digest);
+            output.close();
+            output = null;
+
+            if (length >= 0 && total != length) {
+                throw new IOException("Incomplete download, received " + total + " of "
+                        + length + " bytes.");
+            }
+            if (digest != null) {
+                try {
+                    digest.verify();
+                } catch (LoaderChecksum.ChecksumException e) {
+                    if (partial != null) {
+                        partial.discard();
+                    }
+                    throw e;
+                }
+            }
+
+            if (partial != null) {
+                partial.complete();
+            } else {
+                moveIntoPlace(temp, target);
+                temp = null;
+            }
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (temp != null && temp.exists() && !temp.delete()) {
+                Log.w(TAG, "storeFile - failed to delete " + temp);
+            }
+            pool.release(conn, is, !isCancelled());
+            sampleBandwidth();
+        }
+    }
+
+
+    /**
+     * Copies the response straight into the file channel. Every read is written as soon as it
+     * returns, so cancellation and progress are checked per read and a dropped connection loses
+     * nothing which can be resumed. The stream is read through a channel into one direct buffer
+     * which the file channel writes as is, instead of filling a heap array and copying it over.
+     */
+    long copy(InputStream in, FileChannel out, long offset, long length,
+              LoaderChecksum.Digest digest) throws IOException {
+        int size = MIN_BUFFER;
+        if (length > 0) {
+            size = (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, length / 64));
+        }
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+
+        long total = offset;
+        int count;
+        progress.update(total, length);
+        while ((count = source.read(buffer)) != -1) {
+            checkCancelled();
+            buffer.flip();
+            if (digest != null) {
+                digest.update(buffer);
+            }
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            total += count;
+            progress.update(total, length);
+        }
+        progress.finish(total, length);
+        return total;
+    }
+
+
+    private static void verify(LoaderChecksum checksum, File file, PartialDownload partial)
+            throws IOException {
+        try {
+            checksum.verify(file);
+        } catch (LoaderChecksum.ChecksumException e) {
+            partial.discard();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Moves a completed download over the target. rename(2) replaces the target atomically; the
+     * delete is only a fallback for file systems which refuse to replace.
+     */
+    static void moveIntoPlace(File from, File to) throws IOException {
+        if (from.renameTo(to)) {
+            return;
+        }
+        if (to.exists() && !to.delete()) {
+            throw new IOException("Failed to replace " + to);
+        }
+        if (!from.renameTo(to)) {
+            throw new IOException("Failed to move " + from + " to " + to);
+        }
+    }
+
+
+    private void storeSegmented(SegmentedDownload segmented, int segments) throws IOException {
+        final long length = segmented.getLength();
+        long start = SystemClock.elapsedRealtime();
+        segmented.run(segments, request.getEngine().forRequest(request),
+                new SegmentedDownload.Listener() {
+                    @Override
+                    public void onProgress(long downloaded) throws IOException {
+                        checkCancelled();
+                        progress.update(downloaded, length);
+                    }
+                });
+        progress.finish(length, length);
+        // The ranges have no single response, the request reports the sum of all of them.
+        responseCode = HttpURLConnection.HTTP_PARTIAL;
+        metrics.transferMs = SystemClock.elapsedRealtime() - start;
+        metrics.bytesReceived = segmented.getDownloaded();
+        BandwidthEstimator.getInstance().addTransfer(metrics.bytesReceived, metrics.transferMs);
+    }
+
+
+    /**
+     * Feeds the body to the stream consumer. Returns the body as String only if the caller asked
+     * for it with {@link Builder#setDeliverString(boolean)} and the consumer read it to the end.
+     */
+    private String consume(InputStream in, long length, String charset) throws IOException {
+        LoaderStreamConsumer consumer = builder.streamConsumer;
+        ByteArrayOutputStream copy = builder.deliverString != null && builder.deliverString
+                ? new ByteArrayOutputStream(length > 0 ? (int) Math.min(length, MAX_BUFFER) : 8192)
+                : null;
+        byte[] data = new byte[MIN_BUFFER];
+        long total = 0;
+        int count;
+
+        committed = true;
+        consumer.onStreamStart(builder.action, length, charset);
+        while ((count = in.read(data)) != -1) {
+            checkCancelled();
+            total += count;
+            checkBodySize(total);
+            if (copy != null) {
+                copy.write(data, 0, count);
+            }
+            if (!consumer.onStreamBytes(data, 0, count)) {
+                // Stopped by the consumer, it is not called again.
+                return null;
+            }
+        }
+        checkCancelled();
+        consumer.onStreamEnd(total);
+        return copy != null ? copy.toString(charset) : null;
+    }
+
+
+    private String readString(InputStream in, long length, String charset) throws IOException {
+        return new String(readBytes(in, length), charset);
+    }
+
+
+    /**
+     * Decodes a body in bulk reads through a pooled char buffer. The builder is presized from
+     * the Content-Length, which is an upper bound of the char count for single-byte and UTF-8
+     * bodies.
+     *
+     * @param task the request which is checked for cancellation between reads, may be null
+     */
+    static String readText(InputStream in, long length, String charset, LoaderTaskUtils task)
+            throws IOException {
+        StringBuilder result = new StringBuilder(length > 0
+                ? (int) Math.min(length, 8 * 1024 * 1024) : LoaderBufferPool.CHAR_BUFFER_SIZE);
+        Reader reader = new InputStreamReader(in, charset);
+        char[] buffer = LoaderBufferPool.acquireChars();
+        try {
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                if (task != null) {
+                    task.checkCancelled();
+                }
+                result.append(buffer, 0, count);
+            }
+        } finally {
+            LoaderBufferPool.releaseChars(buffer);
+        }
+        return result.toString();
+    }
+
+
+    private byte[] readBytes(InputStream in, long length) throws IOException {
+        checkBodySize(length);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(
+                length > 0 ? (int) Math.min(length, 8 * 1024 * 1024) : 8192);
+        byte[] data = new byte[MIN_BUFFER];
+        long total = 0;
+        int count;
+        while ((count = in.read(data)) != -1) {
+            checkCancelled();
+            total += count;
+            checkBodySize(total);
+            body.write(data, 0, count);
+        }
+        return body.toByteArray();
+    }
+
+
+    /**
+     * Returns the listeners of identical requests which joined this one. The request leaves the
+     * in-flight registry on the first call, so later identical requests load on their own.
+     */
+    private synchronized List<LoaderTaskListener> takeFollowers() {
+        if (followers == null) {
+            followers = coalesceKey != null
+                    ? LoaderCoalescer.complete(coalesceKey)
+                    : Collections.<LoaderRequest>emptyList();
+        }
+        if (followers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<LoaderTaskListener> listeners = new ArrayList<>(followers.size());
+        for (LoaderRequest follower : followers) {
+            if (follower.getListener() != null) {
+                listeners.add(follower.getListener());
+            }
+        }
+        return listeners;
+    }
+
+
+    /**
+     * Hands a {@link Action#READ} body to this request's and all joined listeners, each with its
+     * own stream over the shared bytes.
+     */
+    private void deliverShared(byte[] body, String charset) throws IOException {
+        committed = true;
+        String text = new String(body, charset);
+        long start = SystemClock.elapsedRealtime();
+        if (isListening()) {
+            builder.loaderTaskListener.onLoaderTaskSuccess(builder.action, new ByteArrayInputStream(body));
+            if (builder.deliverString == null || builder.deliverString) {
+                builder.loaderTaskListener.onLoaderTaskSuccess(builder.action, text);
+            }
+        }
+        for (LoaderTaskListener follower : takeFollowers()) {
+            follower.onLoaderTaskSuccess(builder.action, new ByteArrayInputStream(body));
+            follower.onLoaderTaskSuccess(builder.action, text);
+        }
+        metrics.dispatchMs += SystemClock.elapsedRealtime() - start;
+    }
+
+
+    private boolean isListening() {
+        return builder.loaderTaskListener != null && !detached && !isCancelled();
+    }
+
+
+    private void deliverSuccess(String msg) {
+        committed = true;
+        long start = SystemClock.elapsedRealtime();
+        if (isListening()) {
+            builder.loaderTaskListener.onLoaderTaskSuccess(builder.action, msg);
+        }
+        for (LoaderTaskListener follower : takeFollowers()) {
+            follower.onLoaderTaskSuccess(builder.action, msg);
+        }
+        metrics.dispatchMs += SystemClock.elapsedRealtime() - start;
+    }
+
+
+    private void deliverFailure(String msg) {
+        long start = SystemClock.elapsedRealtime();
+        if (isListening()) {
+            builder.loaderTaskListener.onLoaderTaskFailed(builder.action, msg);
+        }
+        for (LoaderTaskListener follower : takeFollowers()) {
+            follower.onLoaderTaskFailed(builder.action, msg);
+        }
+        metrics.dispatchMs += SystemClock.elapsedRealtime() - start;
+    }
+
+
+    private void checkCancelled() throws IOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("Request cancelled.");
+        }
+    }
 
-                } else if (builder.action == Action.READ) {
 
-                    if (builder.loaderTaskListener != null) {
-                        builder.loaderTaskListener
-                                .onLoaderTaskSuccess(builder.action, is);
-                    }
-                    String text = IoUtils.convertStreamToString(is);
-                    builder.loaderTaskListener.onLoaderTaskSuccess(builder.action, text);
-                    return "";
+    private void checkBodySize(long size) throws IOException {
+        if (builder.maxBodySize > 0 && size > builder.maxBodySize) {
+            throw new LoaderLocalException("Response body exceeds " + builder.maxBodySize + " bytes.");
+        }
+    }
 
-                }
 
-            } else if (builder.action == Action.RESOLVE) {
-                Log.i(TAG, "doInBackground " + url);
-                Log.d(TAG, "doInBackground  ", args);
+    private void acceptEncoding(HttpURLConnection conn) {
+        if (builder.compression) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+    }
 
-                int i = 0;
-                String key = "";
-                Map<String, Object> params = new LinkedHashMap<>();
-                for (String param : args) {
-                    if (i % 2 == 0) {
-                        key = param;
-                    } else if (i % 2 == 1) {
-                        params.put(key, param);
-                    }
-                    i++;
-                }
 
-                Log.logHashMap(TAG, 0, params);
+    private static boolean isEncoded(HttpURLConnection conn) {
+        String encoding = conn.getContentEncoding();
+        return encoding != null && !"identity".equalsIgnoreCase(encoding.trim());
+    }
 
-                StringBuilder postData = new StringBuilder();
-                for (Map.Entry<String, Object> param : params.entrySet()) {
-                    if (postData.length() != 0) {
-                        postData.append('&');
-                    }
-                    postData.append(URLEncoder.encode(param.getKey(), "UTF-8"));
-                    postData.append('=');
-                    postData.append(URLEncoder.encode(String.valueOf(param.getValue()), "UTF-8"));
-                }
-                byte[] postDataBytes = postData.toString().getBytes("UTF-8");
 
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
-                conn.setDoOutput(true);
-                conn.getOutputStream().write(postDataBytes);
+    /**
+     * Opens the response body, counting wire and decoded bytes. With decode set, gzip and
+     * deflate bodies are inflated while they are read.
+     */
+    private InputStream openBody(HttpURLConnection conn, boolean decode) throws IOException {
+        LoaderTransferStats stats = builder.transferStats != null
+                ? builder.transferStats : LoaderTransferStats.getTotals();
+        if (bodyStart == -1) {
+            awaitResponse(conn);
+        }
+        String encoding = conn.getContentEncoding();
+        encoding = encoding == null ? null : encoding.trim().toLowerCase();
+        stats.setContentEncoding(encoding);
+
+        // Counts and times the body bytes of this response only, for the bandwidth sample.
+        wire = new LoaderTransferStats.CountingInputStream(conn.getInputStream());
+        InputStream raw = wire;
+        if (!decode || encoding == null || "identity".equals(encoding)) {
+            return new LoaderTransferStats.CountingInputStream(raw, stats, true, true);
+        }
 
-                StringBuilder result = new StringBuilder();
-                Reader in = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream(), "UTF-8"));
-                for (int c = in.read(); c != -1; c = in.read()) {
-                    result.append((char) c);
+        InputStream wire = new BufferedInputStream(
+                new LoaderTransferStats.CountingInputStream(raw, stats, true, false), 8192);
+        InputStream decoded;
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            decoded = new GZIPInputStream(wire, 8192);
+        } else if ("deflate".equals(encoding)) {
+            // Servers send deflate either zlib wrapped (as specified) or raw.
+            wire.mark(2);
+            int cmf = wire.read();
+            int flg = wire.read();
+            wire.reset();
+            boolean zlib = (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            decoded = new InflaterInputStream(wire, new Inflater(!zlib), 8192) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
                 }
+            };
+        } else {
+            throw new LoaderLocalException("Unsupported Content-Encoding: " + encoding);
+        }
+        return new LoaderTransferStats.CountingInputStream(decoded, stats, false, true);
+    }
 
-                builder.loaderTaskListener.onLoaderTaskSuccess(builder.action, result.toString());
-
-                return "";
-            }
 
-        } catch (IOException e) {
-            builder.loaderTaskListener.onLoaderTaskFailed(builder.action, "An error occurred.");
-            e.printStackTrace();
-        } finally {
-            try {
-                if (output != null) {
-                    output.flush();
-                    output.close();
-                }
-                if (is != null) {
-                    is.close();
+    /**
+     * Gets the charset of a response from its Content-Type, UTF-8 if none is given.
+     *
+     * @param conn the connection
+     * @return the charset
+     */
+    static String getCharset(HttpURLConnection conn) {
+        String contentType = conn.getContentType();
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String charset = param.substring(8).replace("\"", "").trim();
+                    try {
+                        if (Charset.isSupported(charset)) {
+                            return charset;
+                        }
+                    } catch (IllegalCharsetNameException ignored) {
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
-        return "";
+        return "UTF-8";
     }
 
 
-    @Override
-    protected void onProgressUpdate(String... values) {
-
-        if (this.builder.progressDialog != null && values[0] != null) {
-            this.builder.progressDialog.setProgress(Integer.parseInt(values[0]));
+    /**
+     * Gets the content length of a response as long, -1 if unknown.
+     *
+     * @param conn the connection
+     * @return the content length
+     */
+    static long getContentLength(HttpURLConnection conn) {
+        String value = conn.getHeaderField("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
+
+
 
-        super.onProgressUpdate(values);
+    @Override
+    protected void onCancelled(String s) {
+        super.onCancelled(s);
+        // Only reports if the request was cancelled while queued, attempts report themselves.
+        report(LoaderMetrics.Outcome.CANCELLED);
+        if (builder.progressDialog != null) {
+            builder.progressDialog.dismiss();
+        }
     }
 
 
     @Override
     protected void onPostExecute(String s) {
         super.onPostExecute(s);
-        if (builder.progressDialog != null) {
+        if (builder.progressDialog != null && !retrying) {
             builder.progressDialog.dismiss();
         }
     }
@@ -278,6 +1255,29 @@ public class LoaderTaskUtils extends AsyncTask<String, String, String> {
         private List<String> params;
         private ProgressDialog progressDialog;
         private boolean showProgress;
+        private LoaderEngine engine;
+        private LoaderConnectionPool connectionPool;
+        private LoaderCache cache;
+        private boolean resumable;
+        private int segments;
+        private long segmentMinSize;
+        private int segmentRetries;
+        private LoaderProgressListener progressListener;
+        private LoaderStreamConsumer streamConsumer;
+        private Boolean deliverString;
+        private long maxBodySize;
+        private boolean compression = true;
+        private LoaderTransferStats transferStats;
+        private Boolean coalesce;
+        private Priority priority = Priority.NORMAL;
+        private Object tag;
+        private LoaderRetryPolicy retryPolicy = new LoaderRetryPolicy(2, 500, 8000);
+        private boolean idempotent;
+        private List<LoaderRequestBody.FilePart> files;
+        private boolean chunkedUpload;
+        private LoaderOfflineQueue offlineQueue;
+        private String offlineKey;
+        private LoaderChecksum checksum;
 
 
         /**
@@ -352,6 +1352,56 @@ public class LoaderTaskUtils extends AsyncTask<String, String, String> {
         }
 
 
+        /**
+         * Adds a file to upload. A {@link Action#RESOLVE} request with files is sent as
+         * multipart/form-data; params become text parts. Files are streamed from disk, so the
+         * upload size does not affect memory.
+         *
+         * @param key  the key
+         * @param file the file
+         * @return the builder
+         */
+        public Builder addFile(String key, File file) {
+            return addFile(key, file, null);
+        }
+
+
+        /**
+         * Adds a file to upload with the given content type.
+         *
+         * @param key      the key
+         * @param file     the file
+         * @param mimeType the mime type, application/octet-stream if null
+         * @return the builder
+         * @see #addFile(String, File)
+         */
+        public Builder addFile(String key, File file, String mimeType) {
+            action = Action.RESOLVE;
+            if (this.params == null) {
+                this.params = new ArrayList<>();
+            }
+            if (this.files == null) {
+                this.files = new ArrayList<>();
+            }
+
+            files.add(new LoaderRequestBody.FilePart(key, file, mimeType));
+            return this;
+        }
+
+
+        /**
+         * Sends the {@link Action#RESOLVE} body in chunked streaming mode instead of announcing
+         * its length up front. Bodies larger than 2 GB are always sent chunked.
+         *
+         * @param chunkedUpload the chunked upload
+         * @return the builder
+         */
+        public Builder setChunkedUpload(boolean chunkedUpload) {
+            this.chunkedUpload = chunkedUpload;
+            return this;
+        }
+
+
         /**
          * Store content builder.
          *
@@ -458,11 +1508,302 @@ public class LoaderTaskUtils extends AsyncTask<String, String, String> {
         }
 
 
+        /**
+         * Sets the engine which executes the request. Defaults to {@link LoaderEngine#getDefault()}.
+         *
+         * @param engine the engine
+         * @return the builder
+         */
+        public Builder setEngine(LoaderEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+
+        /**
+         * Sets the connection pool. Defaults to {@link LoaderConnectionPool#getDefault()}.
+         *
+         * @param connectionPool the connection pool
+         * @return the builder
+         */
+        public Builder setConnectionPool(LoaderConnectionPool connectionPool) {
+            this.connectionPool = connectionPool;
+            return this;
+        }
+
+
+        /**
+         * Sets a response cache for {@link Action#READ} requests.
+         *
+         * @param cache the cache
+         * @return the builder
+         */
+        public Builder setCache(LoaderCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+
+        /**
+         * Keeps interrupted {@link Action#STORE_FILE} downloads as partial file and continues
+         * them with a Range request on the next launch, provided the server still delivers the
+         * same ETag / Last-Modified.
+         *
+         * @param resumable the resumable
+         * @return the builder
+         */
+        public Builder setResumable(boolean resumable) {
+            this.resumable = resumable;
+            return this;
+        }
+
+
+        /**
+         * Verifies {@link Action#STORE_FILE} downloads against a digest. The file is only moved
+         * into place if the digest matches; on a mismatch the file is downloaded once more from
+         * scratch, a second mismatch fails the request.
+         *
+         * @param checksum the checksum, e.g. {@link LoaderChecksum#sha256(String)}
+         * @return the builder
+         */
+        public Builder setChecksum(LoaderChecksum checksum) {
+            this.checksum = checksum;
+            return this;
+        }
+
+
+        /**
+         * Splits {@link Action#STORE_FILE} downloads of at least 4 MB into parallel byte ranges.
+         *
+         * @param segments the number of segments
+         * @return the builder
+         * @see #setSegments(int, long, int)
+         */
+        public Builder setSegments(int segments) {
+            return setSegments(segments, 4 * 1024 * 1024, 3);
+        }
+
+
+        /**
+         * Splits {@link Action#STORE_FILE} downloads into parallel byte ranges. Each range is
+         * loaded on its own connection and written in place. Falls back to a single request if
+         * the server does not accept byte ranges or the file is smaller than minSize.
+         * <p>
+         * Ranges run on the {@link LoaderEngine} of the request, so the number of segments is
+         * capped at its per-host limit.
+         *
+         * @param segments   the number of segments
+         * @param minSize    the minimum file size in bytes to split
+         * @param maxRetries the number of retries per segment
+         * @return the builder
+         */
+        public Builder setSegments(int segments, long minSize, int maxRetries) {
+            this.segments = segments;
+            this.segmentMinSize = minSize;
+            this.segmentRetries = Math.max(0, maxRetries);
+            return this;
+        }
+
+
+        /**
+         * Sets a listener which receives transferred and total bytes on the main thread. Updates
+         * are throttled to percent steps and a fixed interval; total is -1 for unknown lengths.
+         *
+         * @param progressListener the progress listener
+         * @return the builder
+         */
+        public Builder setProgressListener(LoaderProgressListener progressListener) {
+            this.progressListener = progressListener;
+            return this;
+        }
+
+
+        /**
+         * Streams the {@link Action#READ} body to a consumer instead of materializing it. The
+         * body is then neither handed out as InputStream nor as String, unless
+         * {@link #setDeliverString(boolean)} is enabled explicitly.
+         *
+         * @param streamConsumer the stream consumer
+         * @return the builder
+         * @see LoaderCharConsumer
+         */
+        public Builder setStreamConsumer(LoaderStreamConsumer streamConsumer) {
+            this.streamConsumer = streamConsumer;
+            return this;
+        }
+
+
+        /**
+         * Sets whether the {@link Action#READ} body is delivered as String. Defaults to true,
+         * or to false if a stream consumer is set.
+         *
+         * @param deliverString the deliver string
+         * @return the builder
+         */
+        public Builder setDeliverString(boolean deliverString) {
+            this.deliverString = deliverString;
+            return this;
+        }
+
+
+        /**
+         * Fails {@link Action#READ} requests whose body exceeds the given size.
+         *
+         * @param maxBodySize the max body size in bytes, 0 for no limit
+         * @return the builder
+         */
+        public Builder setMaxBodySize(long maxBodySize) {
+            this.maxBodySize = Math.max(0, maxBodySize);
+            return this;
+        }
+
+
+        /**
+         * Sets whether {@link Action#READ} and {@link Action#RESOLVE} requests negotiate gzip /
+         * deflate and decode the response while reading. Enabled by default.
+         *
+         * @param compression the compression
+         * @return the builder
+         */
+        public Builder setCompression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+
+        /**
+         * Collects the wire and decoded body bytes of this request into the given stats.
+         *
+         * @param transferStats the transfer stats
+         * @return the builder
+         */
+        public Builder setTransferStats(LoaderTransferStats transferStats) {
+            this.transferStats = transferStats;
+            return this;
+        }
+
+
+        /**
+         * Sets whether this request shares one fetch with identical requests (same method, url,
+         * params, cache, max body size, compression, string delivery, engine, timeouts, retry
+         * policy and idempotency) already in flight.
+         * Joined requests only receive the {@link LoaderTaskListener} callbacks of the leading
+         * request. Defaults to true for {@link Action#READ} and false for {@link Action#RESOLVE},
+         * which is not idempotent.
+         * Stream consumer and {@link Action#STORE_FILE} requests are never coalesced.
+         *
+         * @param coalesce the coalesce
+         * @return the builder
+         */
+        public Builder setCoalescing(boolean coalesce) {
+            this.coalesce = coalesce;
+            return this;
+        }
+
+
+        private boolean isCoalescable() {
+            if (action == Action.STORE_FILE || streamConsumer != null
+                    || (files != null && !files.isEmpty())) {
+                return false;
+            }
+            return coalesce != null ? coalesce : action == Action.READ;
+        }
+
+
+        /**
+         * Besides the request itself, the key covers every option which changes what the
+         * listeners of a shared response receive, or where, how patiently and how often the
+         * shared fetch is tried.
+         *
+         * @param engine the engine the request runs on
+         */
+        private String getCoalesceKey(LoaderEngine engine) {
+            return LoaderCoalescer.key(action, url, params)
+                    + "\ncache=" + (cache != null ? cache.getDirectory().getAbsolutePath() : "")
+                    + ", maxBodySize=" + maxBodySize
+                    + ", compression=" + compression
+                    + ", deliverString=" + deliverString
+                    + ", engine=" + engine.getId()
+                    + ", timeouts=" + connectionTimeout + "/" + readTimeout
+                    + ", retryPolicy=" + retryPolicy
+                    + ", idempotent=" + idempotent;
+        }
+
+
+        /**
+         * Sets priority. Defaults to {@link Priority#NORMAL}.
+         *
+         * @param priority the priority
+         * @return the builder
+         */
+        public Builder setPriority(Priority priority) {
+            this.priority = priority != null ? priority : Priority.NORMAL;
+            return this;
+        }
+
+
+        /**
+         * Sets a tag for {@link LoaderEngine#cancelAll(Object)}, e.g. the launching Activity.
+         *
+         * @param tag the tag
+         * @return the builder
+         */
+        public Builder setTag(Object tag) {
+            this.tag = tag;
+            return this;
+        }
+
+
+        /**
+         * Sets the retry policy for connection errors, timeouts, 5xx, 408 and 429 responses.
+         * Defaults to two retries starting at 500 ms. Requests are not retried once their
+         * listener received data, and {@link Action#RESOLVE} only if marked idempotent.
+         *
+         * @param retryPolicy the retry policy, {@link LoaderRetryPolicy#NONE} to disable
+         * @return the builder
+         */
+        public Builder setRetryPolicy(LoaderRetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy != null ? retryPolicy : LoaderRetryPolicy.NONE;
+            return this;
+        }
+
+
+        /**
+         * Marks a {@link Action#RESOLVE} request as safe to send more than once.
+         *
+         * @param idempotent the idempotent
+         * @return the builder
+         */
+        public Builder setIdempotent(boolean idempotent) {
+            this.idempotent = idempotent;
+            return this;
+        }
+
+
+        /**
+         * Queues a {@link Action#RESOLVE} request which fails without reaching the server, e.g.
+         * while offline. The request is replayed by the queue once a network is available.
+         * Uploads of files are not queued.
+         *
+         * @param offlineQueue the offline queue
+         * @param key          the key of the request; a queued request with the same key is
+         *                     superseded. Null to never collapse.
+         * @return the builder
+         */
+        public Builder setOfflineQueue(LoaderOfflineQueue offlineQueue, String key) {
+            this.offlineQueue = offlineQueue;
+            this.offlineKey = key;
+            return this;
+        }
+
+
         /**
          * Launch.
+         *
+         * @return the handle to cancel or reprioritize the request
          */
-        public void launch() {
-            new LoaderTaskUtils(this);
+        public LoaderRequest launch() {
+            return new LoaderTaskUtils(this).getRequest();
         }
 
     }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The type Loader transfer stats.
+ * <p>
+ * Counts the response body bytes received on the wire and the bytes after content decoding.
+ * Pass an instance to {@link LoaderTaskUtils.Builder#setTransferStats(LoaderTransferStats)} for
+ * per request numbers; {@link #getTotals()} accumulates all requests.
+ */
+public class LoaderTransferStats {
+
+    private static final LoaderTransferStats TOTALS = new LoaderTransferStats();
+
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private volatile String contentEncoding;
+
+
+    /**
+     * Gets the stats accumulated over all requests.
+     *
+     * @return the totals
+     */
+    public static LoaderTransferStats getTotals() {
+        return TOTALS;
+    }
+
+
+    /**
+     * Gets the body bytes received on the wire.
+     *
+     * @return the wire bytes
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+
+    /**
+     * Gets the body bytes after decoding.
+     *
+     * @return the decoded bytes
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+
+    /**
+     * Gets the content encoding of the last response, null if it was not encoded.
+     *
+     * @return the content encoding
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+
+    /**
+     * Gets the ratio of decoded to wire bytes, 1 if nothing was compressed.
+     *
+     * @return the compression ratio
+     */
+    public float getCompressionRatio() {
+        long wire = wireBytes.get();
+        return wire == 0 ? 1f : (float) decodedBytes.get() / wire;
+    }
+
+
+    /**
+     * Resets the counters.
+     */
+    public void reset() {
+        wireBytes.set(0);
+        decodedBytes.set(0);
+        contentEncoding = null;
+    }
+
+
+    void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+
+    void addWireBytes(long count) {
+        wireBytes.addAndGet(count);
+        if (this != TOTALS) {
+            TOTALS.wireBytes.addAndGet(count);
+        }
+    }
+
+
+    void addDecodedBytes(long count) {
+        decodedBytes.addAndGet(count);
+        if (this != TOTALS) {
+            TOTALS.decodedBytes.addAndGet(count);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "LoaderTransferStats{wire=" + wireBytes.get() + ", decoded=" + decodedBytes.get()
+                + ", encoding=" + contentEncoding + "}";
+    }
+
+
+    /**
+     * Input stream which reports the bytes read to the wire and/or decoded counter of the
+     * stats, if any, and counts them itself.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+
+        private final LoaderTransferStats stats;
+        private final boolean wire;
+        private final boolean decoded;
+        private final boolean timed;
+        private long total;
+        private long readNanos;
+
+
+        CountingInputStream(InputStream in, LoaderTransferStats stats, boolean wire,
+                            boolean decoded) {
+            this(in, stats, wire, decoded, false);
+        }
+
+
+        /**
+         * Counts the bytes of one response without adding them to any stats, and measures the
+         * time spent inside reads. Whatever the consumer does between reads is not included.
+         */
+        CountingInputStream(InputStream in) {
+            this(in, null, false, false, true);
+        }
+
+
+        private CountingInputStream(InputStream in, LoaderTransferStats stats, boolean wire,
+                                    boolean decoded, boolean timed) {
+            super(in);
+            this.stats = stats;
+            this.wire = wire;
+            this.decoded = decoded;
+            this.timed = timed;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            long start = timed ? System.nanoTime() : 0;
+            int b = super.read();
+            if (timed) {
+                readNanos += System.nanoTime() - start;
+            }
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long start = timed ? System.nanoTime() : 0;
+            int count = super.read(buffer, offset, length);
+            if (timed) {
+                readNanos += System.nanoTime() - start;
+            }
+            if (count > 0) {
+                count(count);
+            }
+            return count;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = super.skip(n);
+            if (count > 0) {
+                count(count);
+            }
+            return count;
+        }
+
+
+        /**
+         * Gets the bytes read through this stream.
+         */
+        long getCount() {
+            return total;
+        }
+
+
+        /**
+         * Gets the time spent inside reads, only measured by a stream created for one response.
+         */
+        long getReadMs() {
+            return readNanos / 1000000;
+        }
+
+
+        private void count(long count) {
+            total += count;
+            if (wire) {
+                stats.addWireBytes(count);
+            }
+            if (decoded) {
+                stats.addDecodedBytes(count);
+            }
+        }
+    }
+
+}
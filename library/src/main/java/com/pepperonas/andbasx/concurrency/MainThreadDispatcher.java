@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * The type Main thread dispatcher.
+ * <p>
+ * Collects tasks posted from any thread and runs all of them in one drain at the start of the
+ * next frame, so a burst of background callbacks costs one main-thread message instead of one
+ * per task. Tasks posted with a key replace the pending task of the same key: only the latest
+ * update of e.g. a progress label is applied.
+ */
+public final class MainThreadDispatcher implements Choreographer.FrameCallback, Runnable {
+
+    private static final String TAG = "MainThreadDispatcher";
+
+    private static MainThreadDispatcher sInstance;
+
+    private ArrayList<Runnable> tasks = new ArrayList<>();
+    private LinkedHashMap<Object, Runnable> latest = new LinkedHashMap<>();
+    private ArrayList<Runnable> drainTasks = new ArrayList<>();
+    private LinkedHashMap<Object, Runnable> drainLatest = new LinkedHashMap<>();
+    private boolean scheduled;
+
+    private long postedCount;
+    private long droppedCount;
+    private long drainCount;
+
+
+    private MainThreadDispatcher() {
+    }
+
+
+    /**
+     * Gets the dispatcher of the main thread.
+     *
+     * @return the instance
+     */
+    public static synchronized MainThreadDispatcher getInstance() {
+        if (sInstance == null) {
+            sInstance = new MainThreadDispatcher();
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Runs a task in the next frame drain.
+     *
+     * @param task the task
+     */
+    public void post(Runnable task) {
+        boolean schedule;
+        synchronized (this) {
+            tasks.add(task);
+            postedCount++;
+            schedule = markScheduled();
+        }
+        if (schedule) {
+            schedule();
+        }
+    }
+
+
+    /**
+     * Runs a task in the next frame drain unless another task with the same key is posted
+     * before; the earlier task is then dropped. Keyed tasks run after unkeyed ones, in the order
+     * their keys were first posted.
+     *
+     * @param key  the key, e.g. the view being updated
+     * @param task the task
+     */
+    public void postLatest(Object key, Runnable task) {
+        boolean schedule;
+        synchronized (this) {
+            if (latest.put(key, task) != null) {
+                droppedCount++;
+            }
+            postedCount++;
+            schedule = markScheduled();
+        }
+        if (schedule) {
+            schedule();
+        }
+    }
+
+
+    /**
+     * Drops a pending keyed task.
+     *
+     * @param key the key
+     */
+    public synchronized void cancel(Object key) {
+        latest.remove(key);
+    }
+
+
+    private boolean markScheduled() {
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+
+    private void schedule() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            // Choreographer is per thread, hop to the main thread first.
+            ThreadUtils.getMainHandler().post(this);
+        }
+    }
+
+
+    @Override
+    public void run() {
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        ArrayList<Runnable> runTasks;
+        LinkedHashMap<Object, Runnable> runLatest;
+        synchronized (this) {
+            // Swap the buffers, tasks posted while draining go to the next frame.
+            runTasks = tasks;
+            runLatest = latest;
+            tasks = drainTasks;
+            latest = drainLatest;
+            drainTasks = runTasks;
+            drainLatest = runLatest;
+            scheduled = false;
+            drainCount++;
+        }
+        for (int i = 0, n = runTasks.size(); i < n; i++) {
+            execute(runTasks.get(i));
+        }
+        for (Runnable task : runLatest.values()) {
+            execute(task);
+        }
+        runTasks.clear();
+        runLatest.clear();
+    }
+
+
+    private static void execute(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "doFrame: ", e);
+        }
+    }
+
+
+    /**
+     * Gets the number of posted tasks.
+     *
+     * @return the posted count
+     */
+    public synchronized long getPostedCount() {
+        return postedCount;
+    }
+
+
+    /**
+     * Gets the number of keyed tasks replaced before they ran.
+     *
+     * @return the dropped count
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+
+    /**
+     * Gets the number of frame drains.
+     *
+     * @return the drain count
+     */
+    public synchronized long getDrainCount() {
+        return drainCount;
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Partially downloaded file of a resumable {@link LoaderTaskUtils.Action#STORE_FILE} request.
+ * <p>
+ * The bytes live in {@code <target>.part}, the validators of the response they belong to in the
+ * sidecar {@code <target>.part.meta}. A resume is only attempted with a strong ETag or a
+ * Last-Modified date, which is sent as If-Range so a changed file restarts from zero.
+ */
+class PartialDownload {
+
+    private static final String SUFFIX_PART = ".part";
+    private static final String SUFFIX_META = ".meta";
+
+    private final File target;
+    private final File part;
+    private final File meta;
+
+    private String etag = "";
+    private String lastModified = "";
+    private long totalLength = -1;
+
+
+    PartialDownload(File target) {
+        this.target = target;
+        this.part = new File(target.getPath() + SUFFIX_PART);
+        this.meta = new File(part.getPath() + SUFFIX_META);
+        readMeta();
+    }
+
+
+    private void readMeta() {
+        if (!meta.exists() || !part.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(meta));
+            etag = in.readUTF();
+            lastModified = in.readUTF();
+            totalLength = in.readLong();
+        } catch (IOException e) {
+            etag = "";
+            lastModified = "";
+            totalLength = -1;
+        } finally {
+            close(in);
+        }
+    }
+
+
+    /**
+     * Returns the byte offset to resume from, 0 if there is nothing valid to resume.
+     */
+    long getResumeOffset() {
+        if (getValidator() == null) {
+            return 0;
+        }
+        long length = part.length();
+        if (totalLength > 0 && length > totalLength) {
+            return 0;
+        }
+        return length;
+    }
+
+
+    /**
+     * Returns the If-Range validator or null if the partial file cannot be resumed safely.
+     */
+    String getValidator() {
+        if (!etag.isEmpty() && !etag.startsWith("W/")) {
+            return etag;
+        }
+        if (!lastModified.isEmpty()) {
+            return lastModified;
+        }
+        return null;
+    }
+
+
+    long getTotalLength() {
+        return totalLength;
+    }
+
+
+    void addRangeHeaders(HttpURLConnection conn, long offset) {
+        conn.setRequestProperty("Range", "bytes=" + offset + "-");
+        conn.setRequestProperty("If-Range", getValidator());
+    }
+
+
+    /**
+     * Returns true if a 206 response belongs to the same representation as the partial file.
+     */
+    boolean matches(HttpURLConnection conn, long offset) {
+        String responseEtag = conn.getHeaderField("ETag");
+        if (!etag.isEmpty() && responseEtag != null && !etag.equals(responseEtag)) {
+            return false;
+        }
+        String contentRange = conn.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-")) {
+            return false;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash >= 0 && totalLength > 0) {
+            String total = contentRange.substring(slash + 1).trim();
+            try {
+                if (!"*".equals(total) && Long.parseLong(total) != totalLength) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Starts over with the representation of a 200 response.
+     */
+    void restart(HttpURLConnection conn) throws IOException {
+        etag = nonNull(conn.getHeaderField("ETag"));
+        lastModified = nonNull(conn.getHeaderField("Last-Modified"));
+        totalLength = LoaderTaskUtils.getContentLength(conn);
+
+        new FileOutputStream(part).close();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(meta));
+        try {
+            out.writeUTF(etag);
+            out.writeUTF(lastModified);
+            out.writeLong(totalLength);
+        } finally {
+            close(out);
+        }
+    }
+
+
+    File getPartFile() {
+        return part;
+    }
+
+
+    /**
+     * Moves the completed partial file over the target and removes the sidecar.
+     */
+    void complete() throws IOException {
+        LoaderTaskUtils.moveIntoPlace(part, target);
+        discardMeta();
+    }
+
+
+    void discard() {
+        part.delete();
+        discardMeta();
+    }
+
+
+    private void discardMeta() {
+        meta.delete();
+        etag = "";
+        lastModified = "";
+        totalLength = -1;
+    }
+
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pepperonas.andbasx.interfaces.RateLimitListener;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Timer and delivery shared by {@link Debouncer} and {@link Throttler}.
+ * <p>
+ * Events themselves allocate nothing: a call only updates the latest value, and the window
+ * timer is scheduled once per window and re-armed from its own callback. With a lane, the timer
+ * runs on {@link TimerUtils} and the listener on {@link ThreadUtils}; without one both run on
+ * the main thread through a single reused Runnable.
+ */
+abstract class RateLimiter<T> {
+
+    private static final String TAG = "RateLimiter";
+
+    private final RateLimitListener<T> listener;
+    private final ThreadUtils.Lane lane;
+    private final Handler handler;
+
+    private final Runnable timer = new Runnable() {
+        @Override
+        public void run() {
+            onTimer();
+        }
+    };
+
+    private final Callable<Void> timerCallable = new Callable<Void>() {
+        @Override
+        public Void call() {
+            onTimer();
+            return null;
+        }
+    };
+
+    private final Runnable delivery = new Runnable() {
+        @Override
+        public void run() {
+            runDelivery();
+        }
+    };
+
+    private final Callable<Void> deliveryCallable = new Callable<Void>() {
+        @Override
+        public Void call() {
+            runDelivery();
+            return null;
+        }
+    };
+
+    private TimerUtils.Task timerTask;
+    private T deliveryValue;
+    private boolean deliveryPending;
+
+
+    RateLimiter(RateLimitListener<T> listener, ThreadUtils.Lane lane) {
+        this.listener = listener;
+        this.lane = lane;
+        this.handler = lane == null ? ThreadUtils.getMainHandler() : null;
+    }
+
+
+    /**
+     * Called when the timer armed by {@link #scheduleTimer(long)} elapsed.
+     */
+    abstract void onTimer();
+
+
+    static long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+
+    /**
+     * Arms the window timer. Called with the subclass lock held.
+     */
+    void scheduleTimer(long delayMs) {
+        if (handler != null) {
+            handler.postDelayed(timer, delayMs);
+        } else {
+            timerTask = TimerUtils.runOnce(delayMs, timerCallable);
+        }
+    }
+
+
+    /**
+     * Disarms the window timer. Called with the subclass lock held.
+     */
+    void cancelTimer() {
+        if (handler != null) {
+            handler.removeCallbacks(timer);
+        } else if (timerTask != null) {
+            timerTask.cancel();
+            timerTask = null;
+        }
+    }
+
+
+    /**
+     * Hands a value to the listener on its thread. If a delivery is still pending, the value
+     * replaces the pending one.
+     */
+    void deliver(T value) {
+        boolean post;
+        synchronized (delivery) {
+            deliveryValue = value;
+            post = !deliveryPending;
+            deliveryPending = true;
+        }
+        if (!post) {
+            return;
+        }
+        if (handler == null) {
+            try {
+                ThreadUtils.runOnBackgroundThread(lane, deliveryCallable);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "deliver - dropped, " + e.getMessage());
+                synchronized (delivery) {
+                    deliveryValue = null;
+                    deliveryPending = false;
+                }
+            }
+        } else if (Looper.myLooper() == Looper.getMainLooper()) {
+            runDelivery();
+        } else {
+            handler.post(delivery);
+        }
+    }
+
+
+    private void runDelivery() {
+        T value;
+        synchronized (delivery) {
+            value = deliveryValue;
+            deliveryValue = null;
+            deliveryPending = false;
+        }
+        listener.onEvent(value);
+    }
+
+}
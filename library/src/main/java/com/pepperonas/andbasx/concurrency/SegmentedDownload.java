@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.jbasx.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file as N byte ranges in parallel, each on its own connection, and writes every
+ * range at its offset through a positional {@link FileChannel} write.
+ * <p>
+ * The ranges form a queue which the thread of the request works through itself, helped by up to
+ * N - 1 jobs on the {@link LoaderEngine} of the request. Helpers therefore count against the
+ * worker and per-host limits and wait while the engine is paused, and a request whose helpers
+ * never get a worker still completes on its own. Every range is sent with If-Range, a strong
+ * ETag or else the Last-Modified date of the probe, so a resource which changes meanwhile fails
+ * the download with a {@link RangeNotHonouredException} instead of mixing two versions.
+ */
+class SegmentedDownload {
+
+    private static final String TAG = "SegmentedDownload";
+
+    private static final String SUFFIX_SEGMENTS = ".seg";
+
+    private final URL url;
+    private final File target;
+    private final LoaderConnectionPool pool;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final int maxRetries;
+    private final LoaderChecksum checksum;
+
+    private final Queue<Segment> segments = new ConcurrentLinkedQueue<>();
+    private final AtomicLong downloaded = new AtomicLong();
+    private volatile IOException failure;
+    private volatile boolean aborted;
+
+    private long length = -1;
+    private String etag;
+    private String lastModified;
+    private CountDownLatch remaining;
+    private RandomAccessFile file;
+    private File temp;
+
+
+    /**
+     * Receives the progress on the thread of the request.
+     */
+    interface Listener {
+
+        /**
+         * Called while the download runs.
+         *
+         * @param downloaded the bytes downloaded so far
+         * @throws IOException to stop the download, e.g. when the request was cancelled
+         */
+        void onProgress(long downloaded) throws IOException;
+    }
+
+
+    SegmentedDownload(URL url, File target, LoaderConnectionPool pool, int connectionTimeout,
+                      int readTimeout, int maxRetries, LoaderChecksum checksum) {
+        this.url = url;
+        this.target = target;
+        this.pool = pool;
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.maxRetries = maxRetries;
+        this.checksum = checksum;
+    }
+
+
+    /**
+     * Thrown when a server answers a range with anything but the requested bytes of the probed
+     * representation. The download can still be loaded as one stream.
+     */
+    static final class RangeNotHonouredException extends LoaderLocalException {
+
+        private static final long serialVersionUID = 1L;
+
+
+        RangeNotHonouredException(String message) {
+            super(message);
+        }
+    }
+
+
+    /**
+     * Probes the resource with a HEAD request.
+     *
+     * @return true if the server supports byte ranges, reports a length of at least minSize and
+     * a validator for If-Range
+     */
+    boolean probe(long minSize) throws IOException {
+        HttpURLConnection conn = pool.open(url, connectionTimeout, readTimeout);
+        InputStream in = null;
+        try {
+            conn.setRequestMethod("HEAD");
+            // Lengths and ranges refer to the unencoded file.
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            conn.connect();
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return false;
+            }
+            in = conn.getInputStream();
+            length = LoaderTaskUtils.getContentLength(conn);
+            etag = conn.getHeaderField("ETag");
+            if (etag != null && etag.startsWith("W/")) {
+                // Weak validators must not be used with If-Range.
+                etag = null;
+            }
+            lastModified = conn.getHeaderField("Last-Modified");
+            if (etag == null && lastModified == null) {
+                Log.d(TAG, "probe - no strong validator for " + url);
+                return false;
+            }
+            return "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"))
+                    && length >= minSize;
+        } finally {
+            pool.release(conn, in);
+        }
+    }
+
+
+    long getLength() {
+        return length;
+    }
+
+
+    long getDownloaded() {
+        return downloaded.get();
+    }
+
+
+    /**
+     * Downloads the file into a temporary file of its own, so concurrent downloads of the same
+     * target cannot mix, and moves it into place once complete and verified.
+     *
+     * @param count    the number of segments
+     * @param helpers  the executor of the helper jobs
+     * @param listener the listener
+     */
+    void run(int count, Executor helpers, Listener listener) throws IOException {
+        boolean done = false;
+        try {
+            temp = File.createTempFile(target.getName(), SUFFIX_SEGMENTS, target.getParentFile());
+            file = new RandomAccessFile(temp, "rw");
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+
+            long size = (length + count - 1) / count;
+            count = (int) ((length + size - 1) / size);
+            remaining = new CountDownLatch(count);
+            for (int i = 0; i < count; i++) {
+                long start = i * size;
+                segments.add(new Segment(channel, start, Math.min(length, start + size) - 1));
+            }
+            Runnable helper = new Runnable() {
+                @Override
+                public void run() {
+                    work(null);
+                }
+            };
+            for (int i = 1; i < count; i++) {
+                try {
+                    helpers.execute(helper);
+                } catch (RejectedExecutionException e) {
+                    Log.d(TAG, "run - " + i + " of " + count + " workers, " + e.getMessage());
+                    break;
+                }
+            }
+
+            work(listener);
+            // Segments taken by helpers may still run.
+            try {
+                while (!remaining.await(250, TimeUnit.MILLISECONDS)) {
+                    listener.onProgress(downloaded.get());
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Segmented download interrupted.");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            file.close();
+            if (checksum != null) {
+                // Segments arrive out of order, the digest needs a pass over the finished file.
+                checksum.verify(temp);
+            }
+            LoaderTaskUtils.moveIntoPlace(temp, target);
+            done = true;
+        } finally {
+            if (!done) {
+                abort();
+            }
+        }
+    }
+
+
+    /**
+     * Runs queued segments until none is left or the download failed.
+     *
+     * @param listener the listener if called on the thread of the request, else null
+     */
+    private void work(Listener listener) {
+        Segment segment;
+        while (!aborted && (segment = segments.poll()) != null) {
+            segment.run(listener);
+        }
+    }
+
+
+    /**
+     * Stops all segments and removes the temporary file.
+     */
+    private void abort() {
+        aborted = true;
+        segments.clear();
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException ignored) {
+        }
+        if (temp != null) {
+            temp.delete();
+        }
+    }
+
+
+    private final class Segment {
+
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+
+        Segment(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+
+        void run(Listener listener) {
+            try {
+                int attempt = 0;
+                while (position <= end && !aborted) {
+                    try {
+                        fetch(listener);
+                    } catch (IOException e) {
+                        if (aborted || ++attempt > maxRetries) {
+                            throw e;
+                        }
+                        Log.w(TAG, "Segment at " + position + " failed, retry " + attempt
+                                + "/" + maxRetries + ": " + e.getMessage());
+                        Thread.sleep(500L * attempt);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                fail(new IOException("Segment interrupted."));
+            } finally {
+                remaining.countDown();
+            }
+        }
+
+
+        private void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            aborted = true;
+            while (remaining.getCount() > 0) {
+                remaining.countDown();
+            }
+        }
+
+
+        private void fetch(Listener listener) throws IOException {
+            HttpURLConnection conn = pool.open(url, connectionTimeout, readTimeout);
+            InputStream in = null;
+            try {
+                conn.setRequestProperty("Accept-Encoding", "identity");
+                conn.setRequestProperty("Range", "bytes=" + position + "-" + end);
+                conn.setRequestProperty("If-Range", etag != null ? etag : lastModified);
+                conn.connect();
+                String contentRange = conn.getHeaderField("Content-Range");
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL || contentRange == null
+                        || !contentRange.startsWith("bytes " + position + "-")
+                        || !isSameRepresentation(conn)) {
+                    aborted = true;
+                    throw new RangeNotHonouredException("Server did not honour range " + position
+                            + "-" + end);
+                }
+
+                in = conn.getInputStream();
+                byte[] data = new byte[16 * 1024];
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                int count;
+                while (!aborted && position <= end && (count = in.read(data)) != -1) {
+                    count = (int) Math.min(count, end - position + 1);
+                    buffer.clear().limit(count);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    long total = downloaded.addAndGet(count);
+                    if (listener != null) {
+                        listener.onProgress(total);
+                    }
+                }
+                if (!aborted && position <= end) {
+                    throw new IOException("Segment ended early at " + position);
+                }
+            } finally {
+                pool.release(conn, in, !aborted);
+            }
+        }
+
+
+        private boolean isSameRepresentation(HttpURLConnection conn) {
+            String responseEtag = conn.getHeaderField("ETag");
+            if (etag != null) {
+                return responseEtag == null || etag.equals(responseEtag);
+            }
+            String responseLastModified = conn.getHeaderField("Last-Modified");
+            return responseLastModified == null || lastModified.equals(responseLastModified);
+        }
+    }
+
+}
@@ -16,66 +16,361 @@
 
 package com.pepperonas.andbasx.concurrency;
 
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The type Thread utils.
+ * <p>
+ * Background work runs on two lanes of its own instead of the serial executor shared by every
+ * AsyncTask in the process: {@link Lane#CPU} is sized to the core count, {@link Lane#IO} is
+ * larger for work which mostly waits. Both lanes have bounded queues; what happens when a queue
+ * is full is decided by the {@link Backpressure} policy, which by default runs the task on the
+ * submitting thread. The main thread and the timer threads of {@link TimerUtils} are never made
+ * to run or wait for a task: unless {@link Backpressure#REJECT} was chosen, their submissions to
+ * a full lane wait in an overflow queue which the lane drains as tasks finish.
  */
 public class ThreadUtils {
 
     private static final String TAG = "ThreadUtils";
 
+    private static final LaneExecutor[] LANES = new LaneExecutor[Lane.values().length];
+
+    private static volatile Backpressure sBackpressure = Backpressure.CALLER_RUNS;
+
+    private static final AtomicLong REJECTED = new AtomicLong();
+
+    /**
+     * Set on threads other than the main thread which must not run or wait for lane work.
+     */
+    static final ThreadLocal<Boolean> NON_BLOCKING = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    private static Handler sMainHandler;
+
+    private static final ThreadLocal<Handler> LOOPER_HANDLER = new ThreadLocal<Handler>() {
+        @Override
+        protected Handler initialValue() {
+            return new Handler();
+        }
+    };
+
+
+    /**
+     * The enum Lane.
+     */
+    public enum Lane {
+        // Referring to statics of ThreadUtils here would make the two classes wait for each
+        // other's initialisation.
+        /**
+         * Computation, one thread per core.
+         */
+        CPU(Runtime.getRuntime().availableProcessors(), 128),
+        /**
+         * Disk and network, threads mostly wait.
+         */
+        IO(Math.max(8, Runtime.getRuntime().availableProcessors() * 2), 256);
+
+        private final int defaultThreads;
+        private final int defaultQueueSize;
+
+
+        Lane(int defaultThreads, int defaultQueueSize) {
+            this.defaultThreads = defaultThreads;
+            this.defaultQueueSize = defaultQueueSize;
+        }
+    }
+
+
+    /**
+     * What a submission does when the queue of its lane is full.
+     */
+    public enum Backpressure {
+        /**
+         * Runs the task on the submitting thread, which slows the producer down. Submissions
+         * from the main thread and timer threads go to the overflow queue instead. The default.
+         */
+        CALLER_RUNS,
+        /**
+         * Blocks the submitting thread until the queue has room. Submissions from the main
+         * thread and timer threads go to the overflow queue instead.
+         */
+        BLOCK,
+        /**
+         * Throws a {@link RejectedExecutionException}, on every thread. Callers must handle it.
+         */
+        REJECT
+    }
+
+
+    /**
+     * Run on background thread on the {@link Lane#IO} lane.
+     *
+     * @param <T>      the result type
+     * @param callable the callable
+     * @return the future of the result
+     */
+    public static <T> Future<T> runOnBackgroundThread(final Callable<T> callable) {
+        return runOnBackgroundThread(Lane.IO, callable);
+    }
+
 
     /**
      * Run on background thread.
      *
+     * @param <T>      the result type
+     * @param lane     the lane
      * @param callable the callable
+     * @return the future of the result
+     * @throws RejectedExecutionException if the lane is full and the policy is
+     *                                    {@link Backpressure#REJECT}
      */
-    public static void runOnBackgroundThread(final Callable callable) {
-        AsyncTask.execute(new Runnable() {
+    public static <T> Future<T> runOnBackgroundThread(Lane lane, final Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable) {
+            @Override
+            protected void setException(Throwable t) {
+                Log.e(TAG, "runOnBackgroundThread: ", t);
+                super.setException(t);
+            }
+        };
+        getLane(lane).execute(task);
+        return task;
+    }
+
+
+    /**
+     * Replaces the executor of a lane. Tasks queued on the previous executor still run.
+     *
+     * @param lane      the lane
+     * @param threads   the number of threads
+     * @param queueSize the number of tasks which may wait for a thread
+     */
+    public static void configureLane(Lane lane, int threads, int queueSize) {
+        LaneExecutor previous;
+        synchronized (LANES) {
+            previous = LANES[lane.ordinal()];
+            LANES[lane.ordinal()] = createLane(lane, Math.max(1, threads), Math.max(1, queueSize));
+        }
+        if (previous != null) {
+            previous.shutdown();
+            previous.handOver();
+        }
+    }
+
+
+    /**
+     * Sets the policy for full queues. Defaults to {@link Backpressure#CALLER_RUNS}.
+     *
+     * @param backpressure the backpressure
+     */
+    public static void setBackpressure(Backpressure backpressure) {
+        sBackpressure = backpressure;
+    }
+
+
+    /**
+     * Gets the number of tasks waiting in a lane, including its overflow queue.
+     *
+     * @param lane the lane
+     * @return the queued count
+     */
+    public static int getQueuedCount(Lane lane) {
+        LaneExecutor executor = getLane(lane);
+        return executor.getQueue().size() + executor.getOverflowCount();
+    }
+
+
+    /**
+     * Gets the number of tasks running in a lane.
+     *
+     * @param lane the lane
+     * @return the active count
+     */
+    public static int getActiveCount(Lane lane) {
+        return getLane(lane).getActiveCount();
+    }
+
+
+    /**
+     * Gets the number of submissions which hit a full queue.
+     *
+     * @return the rejected count
+     */
+    public static long getRejectedCount() {
+        return REJECTED.get();
+    }
+
+
+    private static LaneExecutor getLane(Lane lane) {
+        synchronized (LANES) {
+            LaneExecutor executor = LANES[lane.ordinal()];
+            if (executor == null) {
+                executor = createLane(lane, lane.defaultThreads, lane.defaultQueueSize);
+                LANES[lane.ordinal()] = executor;
+            }
+            return executor;
+        }
+    }
+
+
+    private static LaneExecutor createLane(final Lane lane, int threads, int queueSize) {
+        LaneExecutor executor = new LaneExecutor(lane, threads, queueSize, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG + " " + lane + " #" + count.getAndIncrement());
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    // The lane was replaced in the meantime.
+                    getLane(lane).execute(r);
+                    return;
+                }
+                REJECTED.incrementAndGet();
+                Backpressure backpressure = sBackpressure;
+                if (backpressure != Backpressure.REJECT
+                        && (Looper.myLooper() == Looper.getMainLooper() || NON_BLOCKING.get())) {
+                    ((LaneExecutor) executor).overflow(r);
+                    return;
+                }
+                switch (backpressure) {
+                    case CALLER_RUNS:
+                        r.run();
+                        break;
+                    case BLOCK:
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting for "
+                                    + lane + " lane.");
+                        }
+                        // All workers may have timed out while the queue drained.
+                        executor.prestartCoreThread();
+                        break;
+                    default:
+                        throw new RejectedExecutionException(lane + " lane is full.");
+                }
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * Gets the Handler of the main thread, created once.
+     *
+     * @return the main handler
+     */
+    public static synchronized Handler getMainHandler() {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return sMainHandler;
+    }
+
+
+    /**
+     * Run on main ui thread.
+     *
+     * @param callable the callable
+     */
+    public static void runOnMainUiThread(final Callable<?> callable) {
+        getMainHandler().post(new Runnable() {
             @Override
             public void run() {
                 try {
                     callable.call();
                 } catch (Exception e) {
-                    Log.e(TAG, "runOnBackgroundThread: ", e);
+                    Log.e(TAG, "runOnMainUiThread: ", e);
                 }
             }
         });
     }
 
+
     /**
-     * Run on main ui thread.
+     * Runs a callable on the main thread in the next frame, together with all other callables
+     * posted until then.
      *
      * @param callable the callable
+     * @see MainThreadDispatcher#post(Runnable)
      */
-    public static void runOnMainUiThread(final Callable callable) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
+    public static void runOnNextFrame(final Callable<?> callable) {
+        MainThreadDispatcher.getInstance().post(new Runnable() {
             @Override
             public void run() {
                 try {
                     callable.call();
                 } catch (Exception e) {
-                    Log.e(TAG, "runOnMainUiThread: ", e);
+                    Log.e(TAG, "runOnNextFrame: ", e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Runs a callable on the main thread in the next frame, unless a newer callable is posted
+     * with the same key before.
+     *
+     * @param key      the key
+     * @param callable the callable
+     * @see MainThreadDispatcher#postLatest(Object, Runnable)
+     */
+    public static void runOnNextFrame(Object key, final Callable<?> callable) {
+        MainThreadDispatcher.getInstance().postLatest(key, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callable.call();
+                } catch (Exception e) {
+                    Log.e(TAG, "runOnNextFrame: ", e);
                 }
             }
         });
     }
 
+
     /**
-     * Run delayed.
+     * Run delayed on the Looper of the calling thread.
      *
      * @param callable the callable
      * @param delay    the delay
      */
-    public static void runDelayed(final Callable callable, long delay) {
-        final Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
+    public static void runDelayed(final Callable<?> callable, long delay) {
+        LOOPER_HANDLER.get().postDelayed(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -87,4 +382,68 @@ public class ThreadUtils {
         }, delay);
     }
 
+
+    /**
+     * Executor of a lane with an unbounded overflow queue for submitters which must not run or
+     * wait for a task. Each finished task moves overflow into the bounded queue as it gets room.
+     */
+    private static final class LaneExecutor extends ThreadPoolExecutor {
+
+        private final Lane lane;
+        private final Queue<Runnable> overflow = new ConcurrentLinkedQueue<>();
+
+
+        LaneExecutor(Lane lane, int threads, int queueSize, ThreadFactory threadFactory,
+                     RejectedExecutionHandler handler) {
+            super(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, handler);
+            this.lane = lane;
+        }
+
+
+        int getOverflowCount() {
+            return overflow.size();
+        }
+
+
+        void overflow(Runnable r) {
+            overflow.add(r);
+            // The queue may have drained between the rejection and now.
+            drain();
+        }
+
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            if (!overflow.isEmpty()) {
+                drain();
+            }
+        }
+
+
+        private synchronized void drain() {
+            if (isShutdown()) {
+                handOver();
+                return;
+            }
+            Runnable next;
+            while ((next = overflow.peek()) != null && getQueue().offer(next)) {
+                overflow.poll();
+            }
+            // Tasks put straight into the queue do not start workers which timed out.
+            prestartCoreThread();
+        }
+
+
+        /**
+         * Moves the overflow to the executor which replaced this one.
+         */
+        void handOver() {
+            Runnable next;
+            while ((next = overflow.poll()) != null) {
+                getLane(lane).execute(next);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.RateLimitListener;
+
+/**
+ * The type Throttler.
+ * <p>
+ * Lets at most one event through per interval, e.g. for scroll listeners. With the leading edge
+ * (default), the first call passes immediately; with the trailing edge (default), the latest
+ * value of the calls within an interval passes when the interval ends.
+ *
+ * @param <T> the type of the event value
+ */
+public class Throttler<T> extends RateLimiter<T> {
+
+    private final long intervalMs;
+    private final boolean leading;
+    private final boolean trailing;
+
+    private boolean windowOpen;
+    private boolean hasTrailing;
+    private T latest;
+
+
+    private Throttler(Builder<T> builder) {
+        super(builder.listener, builder.lane);
+        this.intervalMs = builder.intervalMs;
+        this.leading = builder.leading;
+        this.trailing = builder.trailing;
+    }
+
+
+    /**
+     * Submits an event.
+     *
+     * @param value the value
+     */
+    public void call(T value) {
+        boolean fire = false;
+        synchronized (this) {
+            latest = value;
+            if (!windowOpen) {
+                windowOpen = true;
+                scheduleTimer(intervalMs);
+                fire = leading;
+                hasTrailing = !leading;
+            } else {
+                hasTrailing = true;
+            }
+        }
+        if (fire) {
+            deliver(value);
+        }
+    }
+
+
+    @Override
+    void onTimer() {
+        T value;
+        synchronized (this) {
+            if (!windowOpen) {
+                return;
+            }
+            if (!trailing || !hasTrailing) {
+                windowOpen = false;
+                latest = null;
+                return;
+            }
+            // The trailing event opens the next interval, so events stay spaced.
+            hasTrailing = false;
+            value = latest;
+            scheduleTimer(intervalMs);
+        }
+        deliver(value);
+    }
+
+
+    /**
+     * Drops a pending trailing event and ends the current interval.
+     */
+    public synchronized void cancel() {
+        cancelTimer();
+        windowOpen = false;
+        hasTrailing = false;
+        latest = null;
+    }
+
+
+    /**
+     * The type Builder.
+     *
+     * @param <T> the type of the event value
+     */
+    public static class Builder<T> {
+
+        private final long intervalMs;
+        private final RateLimitListener<T> listener;
+        private boolean leading = true;
+        private boolean trailing = true;
+        private ThreadUtils.Lane lane;
+
+
+        /**
+         * Instantiates a new Builder.
+         *
+         * @param intervalMs the interval in ms
+         * @param listener   the listener
+         */
+        public Builder(long intervalMs, RateLimitListener<T> listener) {
+            this.intervalMs = Math.max(1, intervalMs);
+            this.listener = listener;
+        }
+
+
+        /**
+         * Lets the first event pass immediately. Defaults to true.
+         *
+         * @param leading the leading
+         * @return the builder
+         */
+        public Builder<T> setLeading(boolean leading) {
+            this.leading = leading;
+            return this;
+        }
+
+
+        /**
+         * Lets the latest event of an interval pass when it ends. Defaults to true.
+         *
+         * @param trailing the trailing
+         * @return the builder
+         */
+        public Builder<T> setTrailing(boolean trailing) {
+            this.trailing = trailing;
+            return this;
+        }
+
+
+        /**
+         * Calls the listener on a background lane instead of the main thread.
+         *
+         * @param lane the lane
+         * @return the builder
+         */
+        public Builder<T> runOn(ThreadUtils.Lane lane) {
+            this.lane = lane;
+            return this;
+        }
+
+
+        /**
+         * Build throttler.
+         *
+         * @return the throttler
+         */
+        public Throttler<T> build() {
+            return new Throttler<>(this);
+        }
+    }
+
+}
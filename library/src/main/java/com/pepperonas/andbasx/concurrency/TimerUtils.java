@@ -16,32 +16,117 @@
 
 package com.pepperonas.andbasx.concurrency;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import android.os.Build;
+
+import com.pepperonas.andbasx.math.Histogram;
+import com.pepperonas.jbasx.log.Log;
+
 import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The type Timer utils.
+ * <p>
+ * All timers share one small scheduler pool whose threads time out when idle. The scheduler
+ * only keeps time, the callables run on the {@link ThreadUtils.Lane#IO} lane, so a blocking
+ * callable cannot delay the timers of others. Every call returns a {@link Task} handle to stop
+ * it. A task never runs concurrently with itself; when a run overruns its period, the
+ * {@link Overrun} policy decides what happens with the missed ticks instead of running them back
+ * to back.
  */
 public class TimerUtils {
 
+    private static final String TAG = "TimerUtils";
+
+    private static final int POOL_SIZE = 2;
+
+    private static final long REJECTED_RETRY_MS = 50;
+
+    private static final int PURGE_INTERVAL = 64;
+
+    private static final boolean REMOVE_ON_CANCEL =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+    private static final ScheduledThreadPoolExecutor SCHEDULER =
+            new ScheduledThreadPoolExecutor(POOL_SIZE, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(1);
+
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Timing must not stall on a full lane.
+                            ThreadUtils.NON_BLOCKING.set(true);
+                            r.run();
+                        }
+                    }, TAG + " #" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final AtomicInteger LIVE_TASKS = new AtomicInteger();
+    private static final AtomicLong SKIPPED = new AtomicLong();
+    private static final AtomicInteger CANCELLED = new AtomicInteger();
+    private static final Histogram LATENESS = new Histogram();
+
+    static {
+        SCHEDULER.setKeepAliveTime(10, TimeUnit.SECONDS);
+        SCHEDULER.allowCoreThreadTimeOut(true);
+        if (REMOVE_ON_CANCEL) {
+            SCHEDULER.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+
+    /**
+     * The enum Mode.
+     */
+    public enum Mode {
+        /**
+         * Runs start on a fixed grid of multiples of the period.
+         */
+        FIXED_RATE,
+        /**
+         * Each run starts one period after the previous run ended.
+         */
+        FIXED_DELAY
+    }
+
+
+    /**
+     * What a {@link Mode#FIXED_RATE} task does with ticks missed by a run which took longer than
+     * the period.
+     */
+    public enum Overrun {
+        /**
+         * Drops the missed ticks and waits for the next tick on the original grid.
+         */
+        SKIP,
+        /**
+         * Runs once right away for all missed ticks and continues at the rate from there.
+         */
+        COALESCE
+    }
+
+
     /**
      * Run continuously.
      *
      * @param rate     the rate
      * @param callable the callable
+     * @return the task
      */
-    public static void runContinuously(int rate, final Callable<Void> callable) {
-        new Timer().scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    callable.call();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }, 0, rate);
+    public static Task runContinuously(int rate, final Callable<Void> callable) {
+        return schedule(0, rate, Mode.FIXED_RATE, Overrun.SKIP, callable);
     }
 
 
@@ -49,20 +134,262 @@ public class TimerUtils {
      * Run continuously.
      *
      * @param rate     the rate
-     * @param period   the period
+     * @param period   the delay before the first run
      * @param callable the callable
+     * @return the task
      */
-    public static void runContinuously(int rate, int period, final Callable<Void> callable) {
-        new Timer().scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    callable.call();
-                } catch (Exception e) {
-                    e.printStackTrace();
+    public static Task runContinuously(int rate, int period, final Callable<Void> callable) {
+        return schedule(period, rate, Mode.FIXED_RATE, Overrun.SKIP, callable);
+    }
+
+
+    /**
+     * Runs a callable periodically.
+     *
+     * @param initialDelayMs the delay before the first run
+     * @param periodMs       the period
+     * @param mode           the mode
+     * @param overrun        the overrun policy, only used with {@link Mode#FIXED_RATE}
+     * @param callable       the callable
+     * @return the task
+     */
+    public static Task schedule(long initialDelayMs, long periodMs, Mode mode, Overrun overrun,
+                                Callable<Void> callable) {
+        Task task = new Task(callable, Math.max(1, periodMs), mode, overrun);
+        task.start(Math.max(0, initialDelayMs));
+        return task;
+    }
+
+
+    /**
+     * Runs a callable once after a delay.
+     *
+     * @param delayMs  the delay
+     * @param callable the callable
+     * @return the task
+     */
+    public static Task runOnce(long delayMs, Callable<Void> callable) {
+        Task task = new Task(callable, 0, Mode.FIXED_DELAY, Overrun.SKIP);
+        task.start(Math.max(0, delayMs));
+        return task;
+    }
+
+
+    /**
+     * Gets the number of scheduled tasks which were not cancelled or finished.
+     *
+     * @return the live task count
+     */
+    public static int getLiveTaskCount() {
+        return LIVE_TASKS.get();
+    }
+
+
+    /**
+     * Gets the histogram of how late runs started compared to their schedule, in ms.
+     *
+     * @return the lateness
+     */
+    public static Histogram getLateness() {
+        return LATENESS;
+    }
+
+
+    /**
+     * Gets the number of ticks dropped or merged because of overruns.
+     *
+     * @return the skipped count
+     */
+    public static long getSkippedCount() {
+        return SKIPPED.get();
+    }
+
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+
+    /**
+     * Removes cancelled timers from the scheduler queue. Where the queue cannot drop them on
+     * cancel, a purge every {@link #PURGE_INTERVAL} cancels keeps it from filling up.
+     */
+    private static void onCancelled() {
+        if (!REMOVE_ON_CANCEL && CANCELLED.incrementAndGet() % PURGE_INTERVAL == 0) {
+            SCHEDULER.purge();
+        }
+    }
+
+
+    /**
+     * Handle of a scheduled callable.
+     */
+    public static final class Task implements Runnable {
+
+        private final Callable<Void> callable;
+        private final long periodMs;
+        private final Mode mode;
+        private final Overrun overrun;
+
+        private volatile boolean done;
+        private ScheduledFuture<?> future;
+        private long nextRun;
+        private long runCount;
+        private long skippedCount;
+
+
+        private Task(Callable<Void> callable, long periodMs, Mode mode, Overrun overrun) {
+            this.callable = callable;
+            this.periodMs = periodMs;
+            this.mode = mode;
+            this.overrun = overrun;
+        }
+
+
+        private synchronized void start(long delayMs) {
+            LIVE_TASKS.incrementAndGet();
+            nextRun = now() + delayMs;
+            future = SCHEDULER.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+
+        /**
+         * Called by the scheduler when the task is due, hands the run to the lane.
+         */
+        @Override
+        public void run() {
+            if (done) {
+                return;
+            }
+            try {
+                ThreadUtils.runOnBackgroundThread(ThreadUtils.Lane.IO, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        execute();
+                        return null;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "run - lane full, " + (periodMs == 0 ? "retrying." : "tick dropped."));
+                synchronized (this) {
+                    if (done) {
+                        return;
+                    }
+                    if (periodMs == 0) {
+                        future = SCHEDULER.schedule(this, REJECTED_RETRY_MS,
+                                TimeUnit.MILLISECONDS);
+                    } else {
+                        addSkipped(1);
+                        scheduleNext();
+                    }
                 }
             }
-        }, period, rate);
+        }
+
+
+        private void execute() {
+            if (done) {
+                return;
+            }
+            LATENESS.record(Math.max(0, now() - nextRun));
+            try {
+                callable.call();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            synchronized (this) {
+                runCount++;
+                if (done) {
+                    return;
+                }
+                if (periodMs == 0) {
+                    finish();
+                    return;
+                }
+                scheduleNext();
+            }
+        }
+
+
+        private void scheduleNext() {
+            long now = now();
+            if (mode == Mode.FIXED_DELAY) {
+                nextRun = now + periodMs;
+            } else {
+                nextRun += periodMs;
+                if (nextRun < now) {
+                    long missed = (now - nextRun) / periodMs + 1;
+                    if (overrun == Overrun.SKIP) {
+                        nextRun += missed * periodMs;
+                        addSkipped(missed);
+                    } else {
+                        nextRun = now;
+                        addSkipped(missed - 1);
+                    }
+                }
+            }
+            future = SCHEDULER.schedule(this, Math.max(0, nextRun - now), TimeUnit.MILLISECONDS);
+        }
+
+
+        private void addSkipped(long missed) {
+            skippedCount += missed;
+            SKIPPED.addAndGet(missed);
+        }
+
+
+        private void finish() {
+            if (!done) {
+                done = true;
+                LIVE_TASKS.decrementAndGet();
+            }
+        }
+
+
+        /**
+         * Stops the task. A run in progress completes.
+         */
+        public synchronized void cancel() {
+            if (done) {
+                return;
+            }
+            finish();
+            if (future != null) {
+                future.cancel(false);
+                onCancelled();
+            }
+        }
+
+
+        /**
+         * Returns whether the task was cancelled or, for a single run, has run.
+         *
+         * @return the boolean
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+
+        /**
+         * Gets the number of completed runs.
+         *
+         * @return the run count
+         */
+        public synchronized long getRunCount() {
+            return runCount;
+        }
+
+
+        /**
+         * Gets the number of ticks dropped or merged because of overruns.
+         *
+         * @return the skipped count
+         */
+        public synchronized long getSkippedCount() {
+            return skippedCount;
+        }
     }
 
 }
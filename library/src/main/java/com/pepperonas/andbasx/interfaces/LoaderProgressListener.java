@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.interfaces;
+
+import com.pepperonas.andbasx.concurrency.LoaderTaskUtils;
+
+/**
+ * The interface Loader progress listener.
+ * <p>
+ * Called on the main thread, at most once per percent step or progress interval.
+ */
+public interface LoaderProgressListener {
+
+    /**
+     * On loader task progress.
+     *
+     * @param action the action
+     * @param bytes  the bytes transferred so far
+     * @param total  the total bytes or -1 if the length is unknown
+     */
+    void onLoaderTaskProgress(LoaderTaskUtils.Action action, long bytes, long total);
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.interfaces;
+
+import com.pepperonas.andbasx.concurrency.LoaderTaskUtils;
+
+import java.io.IOException;
+
+/**
+ * The interface Loader stream consumer.
+ * <p>
+ * Receives a response body chunk by chunk on the loader thread. The next chunk is only read
+ * after the previous call returned, so a slow consumer slows down the download instead of
+ * buffering it.
+ */
+public interface LoaderStreamConsumer {
+
+    /**
+     * On stream start.
+     *
+     * @param action        the action
+     * @param contentLength the content length or -1 if unknown
+     * @param charset       the charset of the response
+     * @throws IOException the io exception
+     */
+    void onStreamStart(LoaderTaskUtils.Action action, long contentLength, String charset)
+            throws IOException;
+
+    /**
+     * On stream bytes. The buffer is reused for the next chunk.
+     *
+     * @param buffer the buffer
+     * @param offset the offset
+     * @param count  the count
+     * @return false to stop reading
+     * @throws IOException the io exception
+     */
+    boolean onStreamBytes(byte[] buffer, int offset, int count) throws IOException;
+
+    /**
+     * On stream end. Only called if the body was read to the end, not after
+     * {@link #onStreamBytes(byte[], int, int)} returned false, the request was cancelled or
+     * reading failed.
+     *
+     * @param totalBytes the total bytes consumed
+     * @throws IOException the io exception
+     */
+    void onStreamEnd(long totalBytes) throws IOException;
+
+}
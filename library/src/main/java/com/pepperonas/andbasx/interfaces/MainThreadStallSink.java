@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.interfaces;
+
+import com.pepperonas.andbasx.math.Histogram;
+
+/**
+ * The interface Main thread stall sink.
+ * <p>
+ * Both callbacks run on the watchdog thread.
+ *
+ * @see com.pepperonas.andbasx.system.MainThreadWatchdog
+ */
+public interface MainThreadStallSink {
+
+    /**
+     * Called once the main thread is blocked longer than the threshold, while it still is.
+     *
+     * @param elapsedMs the time the main thread is blocked so far in ms
+     * @param stack     the stack of the main thread at that moment
+     */
+    void onStallDetected(long elapsedMs, StackTraceElement[] stack);
+
+    /**
+     * Called when a detected stall is over.
+     *
+     * @param durationMs the duration of the stall in ms
+     * @param stack      the stack captured when the stall was detected
+     * @param durations  the durations of all stalls so far
+     */
+    void onStallEnded(long durationMs, StackTraceElement[] stack, Histogram durations);
+
+}
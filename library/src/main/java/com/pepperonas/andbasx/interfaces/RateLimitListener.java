@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.interfaces;
+
+/**
+ * The interface Rate limit listener.
+ *
+ * @param <T> the type of the event value
+ * @see com.pepperonas.andbasx.concurrency.Debouncer
+ * @see com.pepperonas.andbasx.concurrency.Throttler
+ */
+public interface RateLimitListener<T> {
+
+    /**
+     * On event, called with the latest value when the debouncer or throttler lets it pass.
+     *
+     * @param value the value
+     */
+    void onEvent(T value);
+
+}
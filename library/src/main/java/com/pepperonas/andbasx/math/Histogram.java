@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.math;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The type Histogram.
+ * <p>
+ * Fixed bucket histogram which can be recorded into from any thread without locking. Percentiles
+ * are approximated by the upper bound of the bucket which holds the requested rank.
+ */
+public class Histogram {
+
+    private static final String TAG = "Histogram";
+
+    /**
+     * Bucket bounds for durations in ms, roughly 1-2-5 steps from 1 ms to 30 s.
+     */
+    public static final long[] DURATION_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * Instantiates a new Histogram with {@link #DURATION_BOUNDS}.
+     */
+    public Histogram() {
+        this(DURATION_BOUNDS);
+    }
+
+
+    /**
+     * Instantiates a new Histogram.
+     *
+     * @param bounds the ascending inclusive upper bounds of the buckets. Values above the last
+     *               bound go to an overflow bucket.
+     */
+    public Histogram(long... bounds) {
+        this.bounds = Arrays.copyOf(bounds, bounds.length);
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+
+    /**
+     * Records a value.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        int index = Arrays.binarySearch(bounds, value);
+        counts.incrementAndGet(index >= 0 ? index : -index - 1);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is published.
+        }
+    }
+
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+
+    /**
+     * Gets the mean.
+     *
+     * @return the mean or 0 without values
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return the max
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * Gets an approximate percentile.
+     *
+     * @param percentile the percentile in [0, 100], e.g. 95
+     * @return the upper bound of the bucket holding the percentile, the max for the overflow
+     * bucket and 0 without values
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = getBucketCounts();
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100.0 * total);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return i < bounds.length ? Math.min(bounds[i], max.get()) : max.get();
+            }
+        }
+        return max.get();
+    }
+
+
+    /**
+     * Gets the bucket bounds.
+     *
+     * @return the bounds
+     */
+    public long[] getBounds() {
+        return Arrays.copyOf(bounds, bounds.length);
+    }
+
+
+    /**
+     * Gets a snapshot of the bucket counts, the last one being the overflow bucket.
+     *
+     * @return the bucket counts
+     */
+    public long[] getBucketCounts() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+
+    /**
+     * Resets all buckets.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    @Override
+    public String toString() {
+        return TAG + "{count=" + getCount() + ", mean=" + Math.round(getMean())
+                + ", p50=" + getPercentile(50) + ", p95=" + getPercentile(95)
+                + ", p99=" + getPercentile(99) + ", max=" + getMax() + "}";
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.system;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The type Bandwidth estimator.
+ * <p>
+ * Learns throughput and latency of the active network from real transfers. The loader reports
+ * every response body of at least {@link #MIN_SAMPLE_BYTES} and the time to the first byte of
+ * every response; estimates are moving percentiles over the last {@link #WINDOW} samples, so a
+ * few outliers do not move them. Samples are dropped whenever the underlying network changes.
+ */
+public class BandwidthEstimator {
+
+    private static final String TAG = "BandwidthEstimator";
+
+    /**
+     * The number of samples the estimates are computed from.
+     */
+    public static final int WINDOW = 32;
+
+    /**
+     * The minimum body size of a throughput sample, smaller bodies mostly measure latency.
+     */
+    public static final long MIN_SAMPLE_BYTES = 32 * 1024;
+
+    /**
+     * The minimum number of throughput samples before {@link #classify(boolean)} gives a result.
+     */
+    public static final int MIN_SAMPLES = 5;
+
+    private static final long MIN_SAMPLE_MS = 50;
+
+    private static final int FAST_KBPS = 5000;
+    private static final int MIDDLE_KBPS = 1000;
+
+    private static BandwidthEstimator sInstance;
+
+    private final Window throughput = new Window();
+    private final Window rtt = new Window();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private NetworkUtils.NetworkType lastClass;
+
+
+    /**
+     * Notified when the measured bandwidth moves to another speed bucket.
+     */
+    public interface Listener {
+
+        /**
+         * On bandwidth changed.
+         *
+         * @param kbps the estimated bandwidth in kbit/s
+         */
+        void onBandwidthChanged(long kbps);
+    }
+
+
+    /**
+     * Gets the estimator of the process.
+     *
+     * @return the instance
+     */
+    public static synchronized BandwidthEstimator getInstance() {
+        if (sInstance == null) {
+            sInstance = new BandwidthEstimator();
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Adds a transfer sample. Samples which are too small to measure throughput are ignored.
+     *
+     * @param bytes      the bytes received
+     * @param durationMs the time from the first to the last byte
+     */
+    public void addTransfer(long bytes, long durationMs) {
+        if (bytes < MIN_SAMPLE_BYTES || durationMs < MIN_SAMPLE_MS) {
+            return;
+        }
+        boolean notify = false;
+        long kbps = bytes * 8 / durationMs;
+        synchronized (this) {
+            throughput.add(kbps);
+            NetworkUtils.NetworkType current = classify(false);
+            if (current != null && current != lastClass) {
+                lastClass = current;
+                notify = true;
+                kbps = getBandwidthKbps();
+            }
+        }
+        if (notify) {
+            for (Listener l : listeners) {
+                l.onBandwidthChanged(kbps);
+            }
+        }
+    }
+
+
+    /**
+     * Adds a latency sample, e.g. the time to the first byte of a response.
+     *
+     * @param ms the round trip time in ms
+     */
+    public synchronized void addRtt(long ms) {
+        if (ms >= 0) {
+            rtt.add(ms);
+        }
+    }
+
+
+    /**
+     * Gets the estimated bandwidth, the median of the throughput samples.
+     *
+     * @return the bandwidth in kbit/s or -1 without samples
+     */
+    public synchronized long getBandwidthKbps() {
+        return throughput.percentile(50);
+    }
+
+
+    /**
+     * Gets a percentile of the throughput samples, e.g. 10 for a pessimistic estimate.
+     *
+     * @param percentile the percentile in [0, 100]
+     * @return the bandwidth in kbit/s or -1 without samples
+     */
+    public synchronized long getBandwidthKbps(int percentile) {
+        return throughput.percentile(percentile);
+    }
+
+
+    /**
+     * Gets the estimated round trip time, the median of the latency samples.
+     *
+     * @return the rtt in ms or -1 without samples
+     */
+    public synchronized long getRttMs() {
+        return rtt.percentile(50);
+    }
+
+
+    /**
+     * Gets the number of throughput samples in the window.
+     *
+     * @return the sample count
+     */
+    public synchronized int getSampleCount() {
+        return throughput.count;
+    }
+
+
+    /**
+     * Maps the estimated bandwidth to a network type.
+     *
+     * @param wifi whether the active network is a WiFi or Ethernet link
+     * @return the network type or null while there are less than {@link #MIN_SAMPLES} samples
+     */
+    public synchronized NetworkUtils.NetworkType classify(boolean wifi) {
+        if (throughput.count < MIN_SAMPLES) {
+            return null;
+        }
+        long kbps = throughput.percentile(50);
+        if (kbps >= FAST_KBPS) {
+            return wifi ? NetworkUtils.NetworkType.WIFI_FAST : NetworkUtils.NetworkType.MOBILE_FAST;
+        }
+        if (kbps >= MIDDLE_KBPS) {
+            return NetworkUtils.NetworkType.MOBILE_MIDDLE;
+        }
+        return NetworkUtils.NetworkType.MOBILE_SLOW;
+    }
+
+
+    /**
+     * Drops all samples, called when the underlying network changed.
+     */
+    public synchronized void reset() {
+        throughput.clear();
+        rtt.clear();
+        lastClass = null;
+    }
+
+
+    /**
+     * Adds a listener. Listeners are called on the thread which reported the transfer.
+     *
+     * @param l the l
+     */
+    public void addListener(Listener l) {
+        if (!listeners.contains(l)) {
+            listeners.add(l);
+        }
+    }
+
+
+    /**
+     * Removes a listener added by {@link #addListener(Listener)}.
+     *
+     * @param l the l
+     */
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{bandwidth=" + throughput.percentile(50) + " kbps, rtt="
+                + rtt.percentile(50) + " ms, samples=" + throughput.count + "}";
+    }
+
+
+    private static final class Window {
+
+        private final long[] samples = new long[WINDOW];
+        private final long[] sorted = new long[WINDOW];
+        private int count;
+        private int next;
+
+
+        void add(long sample) {
+            samples[next] = sample;
+            next = (next + 1) % WINDOW;
+            if (count < WINDOW) {
+                count++;
+            }
+        }
+
+
+        long percentile(int percentile) {
+            if (count == 0) {
+                return -1;
+            }
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            int p = Math.max(0, Math.min(100, percentile));
+            return sorted[(count - 1) * p / 100];
+        }
+
+
+        void clear() {
+            count = 0;
+            next = 0;
+        }
+    }
+
+}
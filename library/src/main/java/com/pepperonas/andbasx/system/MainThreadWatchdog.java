@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.system;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pepperonas.andbasx.concurrency.ThreadUtils;
+import com.pepperonas.andbasx.interfaces.MainThreadStallSink;
+import com.pepperonas.andbasx.math.Histogram;
+
+/**
+ * The type Main thread watchdog.
+ * <p>
+ * A background thread posts a heartbeat to the main Looper every half threshold and sleeps. If
+ * the heartbeat is not handled within the threshold, the stack of the main thread is captured
+ * and reported to the {@link MainThreadStallSink}; once it is handled, the stall duration is
+ * recorded into a {@link Histogram}. Without stalls this costs one reused Runnable post per
+ * interval. Time is taken from {@link SystemClock#uptimeMillis()}, so deep sleep never counts as
+ * a stall.
+ */
+public class MainThreadWatchdog implements Runnable {
+
+    private static final String TAG = "MainThreadWatchdog";
+
+    /**
+     * The default stall threshold in ms.
+     */
+    public static final long DEFAULT_THRESHOLD_MS = 500;
+
+    private static final long MIN_THRESHOLD_MS = 50;
+
+    private final long thresholdMs;
+    private final long intervalMs;
+    private final boolean ignoreDebugger;
+    private final MainThreadStallSink sink;
+    private final Histogram durations = new Histogram();
+    private final Handler handler = ThreadUtils.getMainHandler();
+    private final Object lock = new Object();
+
+    private final Runnable heartbeat = new Runnable() {
+        @Override
+        public void run() {
+            answeredAt = SystemClock.uptimeMillis();
+            answered = true;
+        }
+    };
+
+    private volatile boolean answered;
+    private volatile long answeredAt;
+    private volatile boolean running;
+    private volatile Thread thread;
+
+
+    private MainThreadWatchdog(Builder builder) {
+        this.thresholdMs = builder.thresholdMs;
+        this.intervalMs = builder.thresholdMs / 2;
+        this.ignoreDebugger = builder.ignoreDebugger;
+        this.sink = builder.sink != null ? builder.sink : new LogSink();
+    }
+
+
+    /**
+     * Starts watching the main thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stops watching the main thread.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        handler.removeCallbacks(heartbeat);
+        thread = null;
+    }
+
+
+    /**
+     * Is running boolean.
+     *
+     * @return the boolean
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+
+    /**
+     * Gets the durations of all stalls so far in ms.
+     *
+     * @return the stall durations
+     */
+    public Histogram getStallDurations() {
+        return durations;
+    }
+
+
+    /**
+     * Gets the stall threshold in ms.
+     *
+     * @return the threshold
+     */
+    public long getThreshold() {
+        return thresholdMs;
+    }
+
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        Thread mainThread = Looper.getMainLooper().getThread();
+        while (running && thread == self) {
+            answered = false;
+            long postedAt = SystemClock.uptimeMillis();
+            handler.post(heartbeat);
+            sleep(intervalMs);
+
+            StackTraceElement[] stack = null;
+            boolean suppressed = false;
+            while (running && thread == self && !answered) {
+                long elapsed = SystemClock.uptimeMillis() - postedAt;
+                if (stack == null && !suppressed && elapsed >= thresholdMs) {
+                    if (ignoreDebugger && Debug.isDebuggerConnected()) {
+                        // Breakpoints halt the main thread too, these are no stalls.
+                        suppressed = true;
+                    } else {
+                        stack = mainThread.getStackTrace();
+                        sink.onStallDetected(elapsed, stack);
+                    }
+                }
+                sleep(intervalMs);
+            }
+
+            if (stack != null && answered) {
+                long duration = answeredAt - postedAt;
+                durations.record(duration);
+                sink.onStallEnded(duration, stack, durations);
+            }
+        }
+    }
+
+
+    private void sleep(long ms) {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            try {
+                lock.wait(ms);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+    }
+
+
+    /**
+     * Logs stalls as warnings.
+     */
+    public static class LogSink implements MainThreadStallSink {
+
+        @Override
+        public void onStallDetected(long elapsedMs, StackTraceElement[] stack) {
+            StringBuilder sb = new StringBuilder("Main thread blocked for ")
+                    .append(elapsedMs).append(" ms");
+            for (StackTraceElement element : stack) {
+                sb.append("\n\tat ").append(element);
+            }
+            Log.w(TAG, sb.toString());
+        }
+
+
+        @Override
+        public void onStallEnded(long durationMs, StackTraceElement[] stack, Histogram durations) {
+            Log.w(TAG, "Main thread stall ended after " + durationMs + " ms, " + durations);
+        }
+    }
+
+
+    /**
+     * The type Builder.
+     */
+    public static class Builder {
+
+        private long thresholdMs = DEFAULT_THRESHOLD_MS;
+        private boolean ignoreDebugger = true;
+        private MainThreadStallSink sink;
+
+
+        /**
+         * Sets the time the main thread may be blocked before it counts as a stall. Defaults to
+         * {@link #DEFAULT_THRESHOLD_MS}.
+         *
+         * @param thresholdMs the threshold in ms
+         * @return the builder
+         */
+        public Builder setThreshold(long thresholdMs) {
+            this.thresholdMs = Math.max(MIN_THRESHOLD_MS, thresholdMs);
+            return this;
+        }
+
+
+        /**
+         * Sets whether stalls are ignored while a debugger is attached. Defaults to true.
+         *
+         * @param ignoreDebugger the ignore debugger
+         * @return the builder
+         */
+        public Builder setIgnoreDebugger(boolean ignoreDebugger) {
+            this.ignoreDebugger = ignoreDebugger;
+            return this;
+        }
+
+
+        /**
+         * Sets the sink stalls are reported to. Defaults to a {@link LogSink}.
+         *
+         * @param sink the sink
+         * @return the builder
+         */
+        public Builder setSink(MainThreadStallSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+
+        /**
+         * Build main thread watchdog.
+         *
+         * @return the main thread watchdog
+         */
+        public MainThreadWatchdog build() {
+            return new MainThreadWatchdog(this);
+        }
+    }
+
+}
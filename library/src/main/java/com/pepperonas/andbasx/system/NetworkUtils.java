@@ -40,6 +40,7 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static android.content.Context.WIFI_SERVICE;
 
@@ -50,6 +51,13 @@ public class NetworkUtils {
 
     private static final String TAG = "NetworkUtils";
 
+    // Subtypes newer than the compile SDK.
+    private static final int NETWORK_TYPE_GSM = 16;
+    private static final int NETWORK_TYPE_TD_SCDMA = 17;
+    private static final int NETWORK_TYPE_IWLAN = 18;
+    private static final int NETWORK_TYPE_LTE_CA = 19;
+    private static final int NETWORK_TYPE_NR = 20;
+
 
     /**
      * Gets ip address.
@@ -148,8 +156,12 @@ public class NetworkUtils {
     }
 
 
+    private static NetworkUtils sInstance;
+
     private NetworkType type;
+    private String link;
     private NetworkListener listener;
+    private final List<NetworkListener> listeners = new CopyOnWriteArrayList<>();
 
 
     /**
@@ -192,6 +204,19 @@ public class NetworkUtils {
     }
 
 
+    /**
+     * Gets the instance which tracks the active network.
+     *
+     * @return the instance
+     */
+    public static synchronized NetworkUtils getInstance() {
+        if (sInstance == null) {
+            sInstance = new NetworkUtils();
+        }
+        return sInstance;
+    }
+
+
     /**
      * Sets listener.
      *
@@ -202,10 +227,46 @@ public class NetworkUtils {
     }
 
 
+    /**
+     * Adds a listener in addition to the one set by {@link #setListener(NetworkListener)}.
+     *
+     * @param l the l
+     */
+    public final void addListener(NetworkListener l) {
+        if (!listeners.contains(l)) {
+            listeners.add(l);
+        }
+    }
+
+
+    /**
+     * Removes a listener added by {@link #addListener(NetworkListener)}.
+     *
+     * @param l the l
+     */
+    public final void removeListener(NetworkListener l) {
+        listeners.remove(l);
+    }
+
+
     private NetworkUtils() {
         type = NetworkType.NONE;
         updateNetwork();
 
+        final Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                updateNetwork();
+            }
+        };
+        BandwidthEstimator.getInstance().addListener(new BandwidthEstimator.Listener() {
+            @Override
+            public void onBandwidthChanged(long kbps) {
+                // Reported from a loader thread, listeners expect the main thread.
+                ThreadUtils.getMainHandler().post(update);
+            }
+        });
+
         IntentFilter filter = new IntentFilter();
         filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         BroadcastReceiver receiver = new BroadcastReceiver() {
@@ -221,12 +282,36 @@ public class NetworkUtils {
 
     private void updateNetwork() {
         NetworkInfo networkInfo = getNetworkInfo();
-        NetworkType networkType = type;
-        type = checkType(networkInfo);
-        if (type != networkType && listener != null) {
-            listener.onNetworkChanged(networkType, type);
+        NetworkType networkType;
+        NetworkType newType = checkType(networkInfo);
+        BandwidthEstimator estimator = BandwidthEstimator.getInstance();
+        synchronized (this) {
+            String newLink = newType == NetworkType.NONE
+                    ? null : networkInfo.getType() + ":" + networkInfo.getSubtype();
+            if (newLink == null ? link != null : !newLink.equals(link)) {
+                // Samples describe the previous link.
+                estimator.reset();
+                link = newLink;
+            }
+            if (newType != NetworkType.NONE) {
+                NetworkType measured = estimator.classify(newType == NetworkType.WIFI_FAST);
+                if (measured != null) {
+                    newType = measured;
+                }
+            }
+            networkType = type;
+            type = newType;
+        }
+        if (newType != networkType) {
+            NetworkListener l = listener;
+            if (l != null) {
+                l.onNetworkChanged(networkType, newType);
+            }
+            for (NetworkListener added : listeners) {
+                added.onNetworkChanged(networkType, newType);
+            }
         }
-        Log.i(TAG, "Network type: " + type);
+        Log.i(TAG, "Network type: " + newType);
     }
 
 
@@ -257,6 +342,7 @@ public class NetworkUtils {
                 case TelephonyManager.NETWORK_TYPE_CDMA:
                 case TelephonyManager.NETWORK_TYPE_1xRTT:
                 case TelephonyManager.NETWORK_TYPE_IDEN:
+                case NETWORK_TYPE_GSM:
                     return NetworkType.MOBILE_SLOW;
 
                 // 3G
@@ -269,15 +355,20 @@ public class NetworkUtils {
                 case TelephonyManager.NETWORK_TYPE_EVDO_B:
                 case TelephonyManager.NETWORK_TYPE_EHRPD:
                 case TelephonyManager.NETWORK_TYPE_HSPAP:
+                case NETWORK_TYPE_TD_SCDMA:
                     return NetworkType.MOBILE_MIDDLE;
 
-                // 4G
+                // 4G, 5G
                 case TelephonyManager.NETWORK_TYPE_LTE:
+                case NETWORK_TYPE_IWLAN:
+                case NETWORK_TYPE_LTE_CA:
+                case NETWORK_TYPE_NR:
                     return NetworkType.MOBILE_FAST;
             }
         }
 
-        return NetworkType.NONE;
+        // Connected through an unknown subtype or transport, let the estimator refine it.
+        return NetworkType.MOBILE_MIDDLE;
     }
 
 
@@ -341,9 +432,9 @@ public class NetworkUtils {
      */
     public static void connectToWifi(final Context context, final String ssid) {
         NetworkUtils.enableWifi(context, true);
-        ThreadUtils.runOnBackgroundThread(new Callable() {
+        ThreadUtils.runOnBackgroundThread(new Callable<Void>() {
             @Override
-            public Object call() throws Exception {
+            public Void call() throws Exception {
 
                 try {
                     WifiManager wifiManager = (WifiManager) context.getApplicationContext()
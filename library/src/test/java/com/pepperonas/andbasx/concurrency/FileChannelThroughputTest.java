@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks storing a download served from a loopback socket: the loop
+ * {@link LoaderTaskUtils.Action#STORE_FILE} requests used before, a 1 KB array between a
+ * BufferedInputStream and a FileOutputStream, against {@link LoaderTaskUtils#copy}. Prints the
+ * throughput of each per size, the assertions only check that both store the same bytes.
+ */
+public class FileChannelThroughputTest {
+
+    private static final int MB = 1024 * 1024;
+    private static final int[] SIZES_MB = {128, 512};
+    private static final int WARM_UP = 1;
+    private static final int RUNS = 3;
+
+    // The body is one random block repeated, so hundreds of MB need no memory.
+    private final byte[] block = new byte[MB];
+    private volatile int sizeMb;
+    private File dir;
+    private LocalHttpServer server;
+    private LoaderTaskUtils task;
+
+
+    private interface Writer {
+
+        long write(InputStream in, File file, long length) throws IOException;
+    }
+
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(6).nextBytes(block);
+        dir = File.createTempFile("throughput", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(String path, Map<String, String> headers, OutputStream out)
+                    throws IOException {
+                LocalHttpServer.writeHead(out, "200 OK", "Content-Length: " + (long) sizeMb * MB);
+                for (int i = 0; i < sizeMb; i++) {
+                    out.write(block);
+                }
+            }
+        });
+        // Never executed: the task only serves as the owner of copy().
+        task = new LoaderTaskUtils(new LoaderTaskUtils.Builder(null, null,
+                server.getUrl("/file.bin").toString())
+                .storeContent(dir.getPath(), "file", "bin"));
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    @Test
+    public void benchmarkStoreFile() throws IOException {
+        for (int size : SIZES_MB) {
+            sizeMb = size;
+            long expectedCrc = expectedCrc(size);
+            double old = run("1 KB array, streams", expectedCrc, new Writer() {
+                @Override
+                public long write(InputStream in, File file, long length) throws IOException {
+                    InputStream is = new BufferedInputStream(in, 8192);
+                    OutputStream output = new FileOutputStream(file);
+                    try {
+                        byte data[] = new byte[1024];
+                        long total = 0;
+                        int count;
+                        while ((count = is.read(data)) != -1) {
+                            total += count;
+                            output.write(data, 0, count);
+                        }
+                        return total;
+                    } finally {
+                        output.close();
+                    }
+                }
+            });
+            double copy = run("LoaderTaskUtils.copy", expectedCrc, new Writer() {
+                @Override
+                public long write(InputStream in, File file, long length) throws IOException {
+                    FileOutputStream output = new FileOutputStream(file);
+                    try {
+                        return task.copy(in, output.getChannel(), 0, length, null);
+                    } finally {
+                        output.close();
+                    }
+                }
+            });
+            System.out.println(String.format("store %4d MB: streams %7.1f MB/s, copy %7.1f MB/s",
+                    size, old, copy));
+        }
+    }
+
+
+    /**
+     * Returns the best throughput in MB/s. The stored file is checked after the last run.
+     */
+    private double run(String name, long expectedCrc, Writer writer) throws IOException {
+        File file = new File(dir, "file.bin");
+        long length = (long) sizeMb * MB;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARM_UP + RUNS; i++) {
+            HttpURLConnection conn = (HttpURLConnection) server.getUrl("/file.bin").openConnection();
+            conn.setReadTimeout(10000);
+            InputStream in = conn.getInputStream();
+            long start = System.nanoTime();
+            try {
+                assertEquals(name, length, writer.write(in, file, length));
+            } finally {
+                in.close();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARM_UP) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        assertEquals(name, expectedCrc, crc(file));
+        return sizeMb / (best / 1e9);
+    }
+
+
+    private long expectedCrc(int blocks) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < blocks; i++) {
+            crc.update(block);
+        }
+        return crc.getValue();
+    }
+
+
+    private static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[MB];
+            int count;
+            while ((count = in.read(data)) != -1) {
+                crc.update(data, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.LoaderMetricsListener;
+import com.pepperonas.andbasx.interfaces.LoaderTaskListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every request reports its {@link LoaderMetrics} exactly once. Tasks are never
+ * executed on the engine, attempts and AsyncTask callbacks are called on the test thread.
+ */
+public class LoaderMetricsTest {
+
+    private final List<LoaderMetrics> reports = new ArrayList<>();
+
+    private LocalHttpServer server;
+
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(String path, Map<String, String> headers, OutputStream out)
+                    throws IOException {
+                LocalHttpServer.writeHead(out, "200 OK", "Content-Length: 5");
+                out.write("hello".getBytes("US-ASCII"));
+            }
+        });
+        LoaderMetrics.setListener(new LoaderMetricsListener() {
+            @Override
+            public void onLoaderMetrics(LoaderMetrics metrics) {
+                synchronized (reports) {
+                    reports.add(metrics);
+                }
+            }
+        });
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        LoaderMetrics.setListener(LoaderMetricsAggregator.getDefault());
+        server.close();
+    }
+
+
+    @Test
+    public void reportsJoinedRequestWithOutcomeOfLeader() throws IOException {
+        LoaderTaskUtils leader = newTask();
+        newTask();
+
+        leader.doInBackground();
+
+        assertEquals(2, reports.size());
+        assertEquals(LoaderMetrics.Outcome.SUCCESS, reports.get(0).getOutcome());
+        assertFalse(reports.get(0).isCoalesced());
+        assertEquals(1, reports.get(0).getAttempts());
+        assertEquals(LoaderMetrics.Outcome.SUCCESS, reports.get(1).getOutcome());
+        assertTrue(reports.get(1).isCoalesced());
+        assertEquals(200, reports.get(1).getResponseCode());
+        assertEquals(0, reports.get(1).getAttempts());
+    }
+
+
+    @Test
+    public void reportsCancelledJoinedRequestOnce() throws IOException {
+        LoaderTaskUtils leader = newTask();
+        LoaderTaskUtils follower = newTask();
+
+        follower.getRequest().cancel();
+        leader.doInBackground();
+
+        assertEquals(2, reports.size());
+        assertEquals(LoaderMetrics.Outcome.CANCELLED, reports.get(0).getOutcome());
+        assertEquals(LoaderMetrics.Outcome.SUCCESS, reports.get(1).getOutcome());
+        assertFalse(reports.get(1).isCoalesced());
+    }
+
+
+    @Test
+    public void reportsRequestCancelledWhileQueued() throws IOException {
+        LoaderTaskUtils task = newTask();
+
+        task.getRequest().cancel();
+        // What AsyncTask calls for a task which was cancelled before it ran.
+        task.onCancelled(null);
+        task.onCancelled(null);
+
+        assertEquals(1, reports.size());
+        assertEquals(LoaderMetrics.Outcome.CANCELLED, reports.get(0).getOutcome());
+        assertEquals(0, reports.get(0).getAttempts());
+    }
+
+
+    @Test
+    public void transferLeavesOutTimeSpentByStreamConsumer() throws IOException {
+        LoaderTaskUtils task = new LoaderTaskUtils(new LoaderTaskUtils.Builder(null,
+                new SlowReader(), server.getUrl("/text").toString())
+                .setCoalescing(false)
+                .setDeliverString(false));
+
+        task.doInBackground();
+
+        assertEquals(1, reports.size());
+        assertEquals(5, reports.get(0).getBytesReceived());
+        assertTrue(reports.get(0).getTransferMs() < SlowReader.PAUSE_MS * 5);
+    }
+
+
+    private LoaderTaskUtils newTask() throws IOException {
+        return new LoaderTaskUtils(new LoaderTaskUtils.Builder(null, null,
+                server.getUrl("/text").toString())
+                .setDeliverString(false));
+    }
+
+
+
+    /**
+     * Reads the body one byte at a time with a pause after each.
+     */
+    private static final class SlowReader implements LoaderTaskListener {
+
+        private static final long PAUSE_MS = 40;
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, InputStream inputStream) {
+            try {
+                while (inputStream.read() != -1) {
+                    Thread.sleep(PAUSE_MS);
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, String msg) {
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, String msg) {
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, InputStream inputStream) {
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.LoaderTaskListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays queued requests through a {@link LoaderOfflineQueue} whose launches are answered
+ * in place instead of going to the network.
+ */
+public class LoaderOfflineQueueTest {
+
+    private File dir;
+    private TestQueue queue;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("offline", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    @Test
+    public void replaysNextBatchWhenLastRequestOfBatchFails() throws InterruptedException {
+        queue = new TestQueue(dir, "http://example.com/b");
+        queue.enqueue("a", "http://example.com/a", null);
+        queue.enqueue("b", "http://example.com/b", null);
+        queue.enqueue("c", "http://example.com/c", null);
+
+        queue.replay();
+
+        // The failed request goes behind the one which was not replayed yet.
+        assertTrue(queue.awaitEmpty(10000));
+        assertEquals(Arrays.asList("http://example.com/a", "http://example.com/b",
+                "http://example.com/c", "http://example.com/b"), queue.getLaunched());
+    }
+
+
+    /**
+     * Fails the first launch of one url, every other launch succeeds.
+     */
+    private static final class TestQueue extends LoaderOfflineQueue {
+
+        private final List<String> launched = new ArrayList<>();
+        private String failOnce;
+
+
+        TestQueue(File dir, String failOnce) {
+            super(dir, 2, 5);
+            this.failOnce = failOnce;
+        }
+
+
+        @Override
+        void launch(String url, List<String> params, LoaderTaskListener listener) {
+            boolean fail;
+            synchronized (launched) {
+                launched.add(url);
+                fail = url.equals(failOnce);
+                if (fail) {
+                    failOnce = null;
+                }
+            }
+            if (fail) {
+                listener.onLoaderTaskFailed(LoaderTaskUtils.Action.RESOLVE, "HTTP 500");
+            } else {
+                listener.onLoaderTaskSuccess(LoaderTaskUtils.Action.RESOLVE, "");
+            }
+        }
+
+
+        @Override
+        boolean isNetworkAvailable() {
+            return true;
+        }
+
+
+        List<String> getLaunched() {
+            synchronized (launched) {
+                return new ArrayList<>(launched);
+            }
+        }
+
+
+        boolean awaitEmpty(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (size() > 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(20);
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface. Every connection carries one request and is
+ * closed after the {@link Handler} returned, so a handler can drop a response half way.
+ */
+class LocalHttpServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final Thread acceptor;
+    private final AtomicInteger requests = new AtomicInteger();
+
+
+    /**
+     * Answers a request.
+     */
+    interface Handler {
+
+        /**
+         * Writes the response.
+         *
+         * @param path    the request path
+         * @param headers the request headers, names in lower case
+         * @param out     the socket stream
+         * @throws IOException the io exception
+         */
+        void handle(String path, Map<String, String> headers, OutputStream out)
+                throws IOException;
+    }
+
+
+    LocalHttpServer(Handler handler) throws IOException {
+        this.handler = handler;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "LocalHttpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+
+    URL getUrl(String path) throws MalformedURLException {
+        return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+    }
+
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                String path = readLine(in).split(" ")[1];
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon + 1).trim());
+                }
+                requests.incrementAndGet();
+                OutputStream out = socket.getOutputStream();
+                handler.handle(path, headers, out);
+                out.flush();
+            } catch (IOException ignored) {
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+
+    /**
+     * Writes a status line and headers, followed by the blank line.
+     */
+    static void writeHead(OutputStream out, String status, String... headers)
+            throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        for (String header : headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            acceptor.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
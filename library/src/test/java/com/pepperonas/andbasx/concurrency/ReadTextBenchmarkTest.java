@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Microbenchmark of {@link LoaderTaskUtils#readText(InputStream, long, String, LoaderTaskUtils)}
+ * against the char by char loop it replaced, at several body sizes. Prints the throughput of
+ * each, the assertions only check the decoded text.
+ */
+public class ReadTextBenchmarkTest {
+
+    private static final int[] SIZES = {100 * 1024, 1024 * 1024, 10 * 1024 * 1024};
+    private static final long WARM_UP_BYTES = 32L * 1024 * 1024;
+    private static final long RUN_BYTES = 64L * 1024 * 1024;
+    private static final int MIN_RUNS = 5;
+
+
+    @Test
+    public void decodesWithAndWithoutLength() throws IOException {
+        String text = createText(512 * 1024);
+        byte[] body = text.getBytes("UTF-8");
+        assertEquals(text, LoaderTaskUtils.readText(
+                new ByteArrayInputStream(body), body.length, "UTF-8", null));
+        assertEquals(text, LoaderTaskUtils.readText(
+                new ByteArrayInputStream(body), -1, "UTF-8", null));
+        assertEquals("", LoaderTaskUtils.readText(
+                new ByteArrayInputStream(new byte[0]), 0, "UTF-8", null));
+    }
+
+
+    @Test
+    public void benchmarkReadText() throws IOException {
+        for (int size : SIZES) {
+            String text = createText(size);
+            byte[] body = text.getBytes("UTF-8");
+            // Small bodies get more runs, so every size reads about the same number of bytes.
+            int warmUp = (int) Math.max(MIN_RUNS, WARM_UP_BYTES / body.length);
+            int runs = (int) Math.max(MIN_RUNS, RUN_BYTES / body.length);
+            long bulk = Long.MAX_VALUE;
+            long single = Long.MAX_VALUE;
+            for (int i = 0; i < warmUp + runs; i++) {
+                long start = System.nanoTime();
+                String result = LoaderTaskUtils.readText(
+                        new ByteArrayInputStream(body), body.length, "UTF-8", null);
+                long elapsed = System.nanoTime() - start;
+                assertEquals(text.length(), result.length());
+                if (i >= warmUp) {
+                    bulk = Math.min(bulk, elapsed);
+                }
+
+                start = System.nanoTime();
+                result = readCharByChar(new ByteArrayInputStream(body), "UTF-8");
+                elapsed = System.nanoTime() - start;
+                assertEquals(text.length(), result.length());
+                if (i >= warmUp) {
+                    single = Math.min(single, elapsed);
+                }
+            }
+            System.out.println(String.format(
+                    "readText %6d KB: bulk %8.1f MB/s, char by char %8.1f MB/s",
+                    body.length / 1024, mbPerSecond(body.length, bulk),
+                    mbPerSecond(body.length, single)));
+        }
+    }
+
+
+    /**
+     * Creates JSON-like text of about the given size in UTF-8. Multi-byte characters make sure
+     * decoding across buffer boundaries is covered.
+     */
+    private static String createText(int size) {
+        StringBuilder builder = new StringBuilder(size);
+        int bytes = 0;
+        while (bytes < size) {
+            int start = builder.length();
+            builder.append("{\"id\":").append(start)
+                    .append(",\"name\":\"Gr\u00fc\u00dfe aus M\u00fcnchen \u20ac\"},\n");
+            // Three two-byte and one three-byte character per record.
+            bytes += builder.length() - start + 5;
+        }
+        return builder.toString();
+    }
+
+
+    private static double mbPerSecond(int length, long nanos) {
+        return length / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+
+    /**
+     * The loop RESOLVE responses were read with before.
+     */
+    private static String readCharByChar(InputStream in, String charset) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(in, charset));
+        StringBuilder result = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            result.append((char) c);
+        }
+        return result.toString();
+    }
+
+}
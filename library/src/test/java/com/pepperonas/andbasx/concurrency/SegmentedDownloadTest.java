@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link SegmentedDownload}s against a {@link LocalHttpServer} which serves byte ranges.
+ */
+public class SegmentedDownloadTest {
+
+    private static final int LENGTH = 1024 * 1024;
+
+    private final byte[] body = new byte[LENGTH];
+
+    private File dir;
+    private File target;
+    private LocalHttpServer server;
+
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(7).nextBytes(body);
+        dir = File.createTempFile("segmented", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        target = new File(dir, "file.bin");
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(String path, Map<String, String> headers, OutputStream out)
+                    throws IOException {
+                String range = headers.get("range");
+                if (range == null) {
+                    LocalHttpServer.writeHead(out, "200 OK",
+                            "ETag: \"v1\"",
+                            "Accept-Ranges: bytes",
+                            "Content-Length: " + LENGTH);
+                    out.write(body);
+                    return;
+                }
+                int dash = range.indexOf('-');
+                int from = Integer.parseInt(range.substring("bytes=".length(), dash));
+                int to = Integer.parseInt(range.substring(dash + 1));
+                LocalHttpServer.writeHead(out, "206 Partial Content",
+                        "ETag: \"v1\"",
+                        "Content-Range: bytes " + from + "-" + to + "/" + LENGTH,
+                        "Content-Length: " + (to - from + 1));
+                out.write(body, from, to - from + 1);
+            }
+        });
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    @Test
+    public void completesWhenHelpersNeverRun() throws IOException {
+        // Like an engine which is paused or has no worker left for the host.
+        final List<Runnable> held = new ArrayList<>();
+        download(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                held.add(command);
+            }
+        });
+
+        assertEquals(3, held.size());
+        assertArrayEquals(body, read(target));
+        // Helpers starting late find nothing left to do.
+        for (Runnable helper : held) {
+            helper.run();
+        }
+        assertEquals(1, dir.list().length);
+    }
+
+
+    @Test
+    public void runsHelpersOnEngine() throws IOException {
+        LoaderEngine engine = new LoaderEngine.Builder().setMaxPerHost(2).build();
+
+        download(engine.forHost(server.getUrl("/").getAuthority()));
+
+        assertArrayEquals(body, read(target));
+        assertEquals(5, server.getRequestCount());
+    }
+
+
+    @Test
+    public void concurrentDownloadsOfSameTargetDoNotMix() throws Exception {
+        final Executor engine = new LoaderEngine.Builder().build().forHost("");
+        final IOException[] failures = new IOException[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        download(engine);
+                    } catch (IOException e) {
+                        failures[index] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failures[0]);
+        assertNull(failures[1]);
+        assertArrayEquals(body, read(target));
+        assertEquals(1, dir.list().length);
+    }
+
+
+    private void download(Executor helpers) throws IOException {
+        SegmentedDownload download = new SegmentedDownload(server.getUrl("/file.bin"), target,
+                LoaderConnectionPool.getDefault(), 5000, 5000, 0,
+                LoaderChecksum.crc32(crc32(body)));
+        assertTrue(download.probe(0));
+        download.run(4, helpers, new SegmentedDownload.Listener() {
+            @Override
+            public void onProgress(long downloaded) {
+            }
+        });
+        assertEquals(LENGTH, download.getDownloaded());
+    }
+
+
+    private static String crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return String.format("%08x", crc.getValue());
+    }
+
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int count;
+            while (offset < data.length
+                    && (count = in.read(data, offset, data.length - offset)) != -1) {
+                offset += count;
+            }
+            return Arrays.copyOf(data, offset);
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pepperonas.andbasx.concurrency;
+
+import com.pepperonas.andbasx.interfaces.LoaderTaskListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link LoaderTaskUtils.Action#STORE_FILE} requests against a {@link LocalHttpServer}
+ * which drops connections, changes the resource or ignores ranges. Every download runs the
+ * request's attempt on the test thread.
+ */
+public class StoreFileTest {
+
+    private static final int LENGTH = 256 * 1024;
+    private static final int DROP_AT = LENGTH / 2;
+
+    private final byte[] body = new byte[LENGTH];
+    private final byte[] changedBody = new byte[LENGTH];
+    private final List<Map<String, String>> requests = new ArrayList<>();
+
+    private volatile String etag = "\"v1\"";
+    private volatile int drops;
+    private volatile boolean ignoreRanges;
+    private volatile String rangeEtag;
+    private File dir;
+    private File target;
+    private LocalHttpServer server;
+
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(4).nextBytes(body);
+        new Random(5).nextBytes(changedBody);
+        dir = File.createTempFile("store", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        target = new File(dir, "file.bin");
+        server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public void handle(String path, Map<String, String> headers, OutputStream out)
+                    throws IOException {
+                synchronized (requests) {
+                    requests.add(headers);
+                }
+                serve(headers, out);
+            }
+        });
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        delete(dir);
+    }
+
+
+    /**
+     * Serves the current body with a strong ETag. A range request with a matching If-Range gets
+     * the rest, or 416 if nothing is left. While drops are left a full response is cut off after
+     * {@link #DROP_AT} bytes.
+     */
+    private void serve(Map<String, String> headers, OutputStream out) throws IOException {
+        String range = headers.get("range");
+        byte[] current = "\"v1\"".equals(etag) ? body : changedBody;
+        if (range != null && !ignoreRanges && etag.equals(headers.get("if-range"))) {
+            int from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            if (from >= LENGTH) {
+                LocalHttpServer.writeHead(out, "416 Range Not Satisfiable",
+                        "Content-Range: bytes */" + LENGTH,
+                        "Content-Length: 0");
+                return;
+            }
+            // A server which sends a range of another representation than it claims to.
+            String sentEtag = rangeEtag != null ? rangeEtag : etag;
+            LocalHttpServer.writeHead(out, "206 Partial Content",
+                    "ETag: " + sentEtag,
+                    "Content-Range: bytes " + from + "-" + (LENGTH - 1) + "/" + LENGTH,
+                    "Content-Length: " + (LENGTH - from));
+            out.write(current, from, LENGTH - from);
+            return;
+        }
+        LocalHttpServer.writeHead(out, "200 OK",
+                "ETag: " + etag,
+                "Accept-Ranges: bytes",
+                "Content-Length: " + LENGTH);
+        if (drops > 0) {
+            drops--;
+            out.write(current, 0, DROP_AT);
+        } else {
+            out.write(current);
+        }
+    }
+
+
+    @Test
+    public void resumesAfterDroppedConnection() throws IOException {
+        drops = 1;
+        assertNotNull(download(true, sha256(body)).failure);
+        assertEquals(DROP_AT, getPartFile().length());
+
+        Result result = download(true, sha256(body));
+
+        assertEquals("File successfully stored.", result.success);
+        assertEquals("bytes=" + DROP_AT + "-", getRequest(1).get("range"));
+        assertEquals("\"v1\"", getRequest(1).get("if-range"));
+        assertEquals("identity", getRequest(1).get("accept-encoding"));
+        // The digest covers the resumed prefix read back from disk and the rest from the wire.
+        assertArrayEquals(body, read(target));
+        assertFalse(getPartFile().exists());
+        assertFalse(getMetaFile().exists());
+        assertEquals(2, server.getRequestCount());
+    }
+
+
+    @Test
+    public void downloadsAgainWhenResumedPrefixIsCorrupt() throws IOException {
+        drops = 1;
+        download(true, sha256(body));
+        RandomAccessFile part = new RandomAccessFile(getPartFile(), "rw");
+        try {
+            part.seek(DROP_AT / 2);
+            part.write(~body[DROP_AT / 2]);
+        } finally {
+            part.close();
+        }
+
+        Result result = download(true, sha256(body));
+
+        // The corrupt prefix is dropped and the file loaded once more without a range, even
+        // though the retry policy allows no retries.
+        assertEquals("File successfully stored.", result.success);
+        assertEquals("bytes=" + DROP_AT + "-", getRequest(1).get("range"));
+        assertNull(getRequest(2).get("range"));
+        assertArrayEquals(body, read(target));
+        assertFalse(getPartFile().exists());
+        assertFalse(getMetaFile().exists());
+    }
+
+
+    @Test
+    public void failsWhenChecksumMismatchesTwice() throws IOException {
+        Result result = download(true, sha256(changedBody));
+
+        assertNotNull(result.failure);
+        assertEquals(2, server.getRequestCount());
+        assertNull(getRequest(1).get("range"));
+        assertFalse(target.exists());
+        assertFalse(getPartFile().exists());
+        assertFalse(getMetaFile().exists());
+    }
+
+
+    @Test
+    public void restartsWhenResourceChanged() throws IOException {
+        drops = 1;
+        download(true, null);
+
+        etag = "\"v2\"";
+        Result result = download(true, sha256(changedBody));
+
+        // If-Range no longer matches, the server sends the whole new representation.
+        assertEquals("File successfully stored.", result.success);
+        assertEquals("\"v1\"", getRequest(1).get("if-range"));
+        assertArrayEquals(changedBody, read(target));
+        assertFalse(getPartFile().exists());
+    }
+
+
+    @Test
+    public void restartsWhenServerIgnoresRange() throws IOException {
+        drops = 1;
+        download(true, null);
+
+        ignoreRanges = true;
+        Result result = download(true, sha256(body));
+
+        // A 200 instead of the expected 206 replaces the partial file instead of appending.
+        assertEquals("File successfully stored.", result.success);
+        assertEquals("bytes=" + DROP_AT + "-", getRequest(1).get("range"));
+        assertArrayEquals(body, read(target));
+    }
+
+
+    @Test
+    public void rejectsPartialResponseOfOtherRepresentation() throws IOException {
+        drops = 1;
+        download(true, null);
+
+        rangeEtag = "\"v2\"";
+        Result result = download(true, null);
+
+        assertNotNull(result.failure);
+        assertFalse(target.exists());
+        assertFalse(getPartFile().exists());
+        assertFalse(getMetaFile().exists());
+    }
+
+
+    @Test
+    public void completesWhenRangeNotSatisfiable() throws IOException {
+        // A non-empty directory in place of the target fails the move after a full download,
+        // the way a process dying right before the rename leaves a complete partial file.
+        assertTrue(target.mkdir() && new File(target, "blocker").createNewFile());
+        assertNotNull(download(true, null).failure);
+        assertEquals(LENGTH, getPartFile().length());
+        delete(target);
+
+        Result result = download(true, sha256(body));
+
+        assertEquals("File successfully stored.", result.success);
+        assertEquals("bytes=" + LENGTH + "-", getRequest(1).get("range"));
+        assertArrayEquals(body, read(target));
+        assertFalse(getPartFile().exists());
+        assertFalse(getMetaFile().exists());
+    }
+
+
+    @Test
+    public void replacesExistingFileWithoutResume() throws IOException {
+        OutputStream out = new FileOutputStream(target);
+        try {
+            out.write(changedBody, 0, 100);
+        } finally {
+            out.close();
+        }
+
+        Result result = download(false, sha256(body));
+
+        assertEquals("File successfully stored.", result.success);
+        assertNull(getRequest(0).get("range"));
+        assertArrayEquals(body, read(target));
+        assertEquals(1, dir.list().length);
+    }
+
+
+    private Result download(boolean resumable, String sha256) throws IOException {
+        Result result = new Result();
+        LoaderTaskUtils.Builder builder = new LoaderTaskUtils.Builder(null, result,
+                server.getUrl("/file.bin").toString())
+                .storeContent(dir.getPath(), "file", "bin")
+                .setResumable(resumable)
+                .setRetryPolicy(LoaderRetryPolicy.NONE);
+        if (sha256 != null) {
+            builder.setChecksum(LoaderChecksum.sha256(sha256));
+        }
+        // Never executed on the engine, the attempt runs right here.
+        LoaderTaskUtils task = new LoaderTaskUtils(builder) {
+            @Override
+            boolean isNetworkAvailable() {
+                return true;
+            }
+        };
+        task.doInBackground();
+        return result;
+    }
+
+
+    private Map<String, String> getRequest(int index) {
+        synchronized (requests) {
+            return requests.get(index);
+        }
+    }
+
+
+    private File getPartFile() {
+        return new PartialDownload(target).getPartFile();
+    }
+
+
+    private File getMetaFile() {
+        return new File(getPartFile().getPath() + ".meta");
+    }
+
+
+    private static String sha256(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int count;
+            while (offset < data.length
+                    && (count = in.read(data, offset, data.length - offset)) != -1) {
+                offset += count;
+            }
+            return Arrays.copyOf(data, offset);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+
+    /**
+     * Records the outcome of one download.
+     */
+    private static final class Result implements LoaderTaskListener {
+
+        private String success;
+        private String failure;
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, String msg) {
+            success = msg;
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, String msg) {
+            failure = msg;
+        }
+
+
+        @Override
+        public void onLoaderTaskSuccess(LoaderTaskUtils.Action action, InputStream inputStream) {
+        }
+
+
+        @Override
+        public void onLoaderTaskFailed(LoaderTaskUtils.Action action, InputStream inputStream) {
+        }
+    }
+
+}